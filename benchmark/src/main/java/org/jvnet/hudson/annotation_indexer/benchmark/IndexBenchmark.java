@@ -0,0 +1,112 @@
+package org.jvnet.hudson.annotation_indexer.benchmark;
+
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.AnnotatedElement;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+import org.jvnet.hudson.annotation_indexer.Index;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Looks up every annotation of a {@link SyntheticClasspath}.
+ *
+ * <p>
+ * The class loader lives as long as the trial, so after the first invocation
+ * {@code list} benchmarks measure reflection rather than class loading.
+ * Run with {@code -prof gc} to see the allocation rate of each lookup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IndexBenchmark {
+    @Param({"1", "50"})
+    public int jars;
+
+    @Param({"20"})
+    public int types;
+
+    @Param({"2000"})
+    public int classes;
+
+    @Param({"6"})
+    public int maxMembers;
+
+    /**
+     * Extra options for the annotation processor, such as {@code -Aannotation_indexer.binary=true}.
+     */
+    @Param({""})
+    public String options;
+
+    @Param({"false", "true"})
+    public boolean caching;
+
+    private SyntheticClasspath classpath;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        classpath = new SyntheticClasspath(jars, types, classes, maxMembers, options.isEmpty() ? new String[0] : options.split(" "));
+        Index.setCaching(caching);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Index.setCaching(false);
+        classpath.close();
+    }
+
+    @Benchmark
+    public void listClassNames(Blackhole bh) throws IOException {
+        for (Class<? extends Annotation> a : classpath.annotations) {
+            bh.consume(Index.listClassNames(a, classpath.loader));
+        }
+    }
+
+    @Benchmark
+    public void listClassNamesBulk(Blackhole bh) throws IOException {
+        bh.consume(Index.listClassNames(classpath.annotations, classpath.loader));
+    }
+
+    @Benchmark
+    public void list(Blackhole bh) throws IOException {
+        for (Class<? extends Annotation> a : classpath.annotations) {
+            for (AnnotatedElement e : Index.list(a, classpath.loader)) {
+                bh.consume(e);
+            }
+        }
+    }
+
+    @Benchmark
+    public void listMethods(Blackhole bh) throws IOException {
+        for (Class<? extends Annotation> a : classpath.annotations) {
+            for (Method m : Index.list(a, classpath.loader, Method.class)) {
+                bh.consume(m);
+            }
+        }
+    }
+
+    @Benchmark
+    public void listClasses(Blackhole bh) throws IOException {
+        for (Class<? extends Annotation> a : classpath.annotations) {
+            for (Class<?> c : Index.list(a, classpath.loader, Class.class)) {
+                bh.consume(c);
+            }
+        }
+    }
+}
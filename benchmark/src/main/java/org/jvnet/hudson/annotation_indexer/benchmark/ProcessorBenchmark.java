@@ -0,0 +1,86 @@
+package org.jvnet.hudson.annotation_indexer.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compiles one large compilation unit of annotated classes into an empty directory.
+ *
+ * <p>
+ * Compare {@code process=true} against {@code process=false} for the cost of indexing on top of plain compilation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ProcessorBenchmark {
+    @Param({"20"})
+    public int types;
+
+    @Param({"5000"})
+    public int classes;
+
+    @Param({"6"})
+    public int maxMembers;
+
+    @Param({"true", "false"})
+    public boolean process;
+
+    /**
+     * Extra options for the annotation processor, such as {@code -Aannotation_indexer.binary=true}.
+     */
+    @Param({""})
+    public String options;
+
+    private SyntheticClasspath annotations;
+
+    private final Map<String, String> sources = new TreeMap<>();
+
+    private Path out;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        // just for the annotation types
+        annotations = new SyntheticClasspath(0, types, 0, 0);
+        for (int c = 0; c < classes; c++) {
+            sources.put("bench/p0/C" + c + ".java", SyntheticClasspath.annotatedClass(0, c, types, maxMembers));
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void createOutput() throws IOException {
+        out = Files.createTempDirectory(annotations.dir, "out");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        annotations.close();
+    }
+
+    @Benchmark
+    public Path compile() throws IOException {
+        SyntheticClasspath.compile(annotations.dir.resolve("src"), sources, out, List.of(annotations.dir.resolve("annotations.jar")), process,
+                options.isEmpty() ? new String[0] : options.split(" "));
+        return out;
+    }
+}
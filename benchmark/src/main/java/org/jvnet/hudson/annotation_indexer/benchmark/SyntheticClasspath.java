@@ -0,0 +1,188 @@
+package org.jvnet.hudson.annotation_indexer.benchmark;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.stream.Stream;
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import org.jvnet.hudson.annotation_indexer.AnnotationProcessorImpl;
+import org.jvnet.hudson.annotation_indexer.Indexed;
+
+/**
+ * Generates and compiles a class path of jar files that use {@link Indexed} annotations,
+ * indexed by {@link AnnotationProcessorImpl} the way a regular build would.
+ *
+ * <p>
+ * The annotation types {@code bench.A0}, {@code bench.A1}, etc. go into a jar file of their own.
+ * The annotated classes are spread evenly over the other jar files, and each carries one of the annotations,
+ * on the class itself and on up to {@code maxMembers} of its fields, methods and one of its constructors,
+ * next to as many members that are not annotated.
+ */
+final class SyntheticClasspath implements Closeable {
+    final Path dir;
+    final URLClassLoader loader;
+    final List<Class<? extends Annotation>> annotations = new ArrayList<>();
+
+    SyntheticClasspath(int jars, int types, int classes, int maxMembers, String... options) throws IOException {
+        dir = Files.createTempDirectory("annotation-indexer-benchmark");
+        List<URL> urls = new ArrayList<>();
+
+        Map<String, String> annotationSources = new TreeMap<>();
+        for (int a = 0; a < types; a++) {
+            annotationSources.put("bench/A" + a + ".java", annotation(a));
+        }
+        Path annotationJar = compileToJar("annotations", annotationSources, List.of(), options);
+        urls.add(annotationJar.toUri().toURL());
+
+        for (int j = 0; j < jars; j++) {
+            Map<String, String> sources = new TreeMap<>();
+            for (int c = j; c < classes; c += jars) {
+                sources.put("bench/p" + j + "/C" + c + ".java", annotatedClass(j, c, types, maxMembers));
+            }
+            urls.add(compileToJar("lib" + j, sources, List.of(annotationJar), options).toUri().toURL());
+        }
+
+        loader = new URLClassLoader(urls.toArray(new URL[0]), Indexed.class.getClassLoader());
+        try {
+            for (int a = 0; a < types; a++) {
+                annotations.add(loader.loadClass("bench.A" + a).asSubclass(Annotation.class));
+            }
+        } catch (ClassNotFoundException x) {
+            throw new IOException(x);
+        }
+    }
+
+    static String annotation(int a) {
+        return "package bench;\n"
+                + "@org.jvnet.hudson.annotation_indexer.Indexed\n"
+                + "@java.lang.annotation.Retention(java.lang.annotation.RetentionPolicy.RUNTIME)\n"
+                + "public @interface A" + a + " {\n"
+                + "    int value() default 0;\n"
+                + "}\n";
+    }
+
+    static String annotatedClass(int jar, int c, int types, int maxMembers) {
+        String a = "@bench.A" + (c % types);
+        int members = maxMembers == 0 ? 0 : c % (maxMembers + 1);
+        StringBuilder b = new StringBuilder();
+        b.append("package bench.p").append(jar).append(";\n");
+        b.append(a).append(" public class C").append(c).append(" {\n");
+        b.append("    public C").append(c).append("() {}\n");
+        b.append("    ").append(members > 2 ? a : "").append(" public C").append(c).append("(String s, int[] i) {}\n");
+        for (int m = 0; m < members; m++) {
+            switch (m % 3) {
+            case 0:
+                b.append("    ").append(a).append("(").append(m).append(") public int f").append(m).append(";\n");
+                break;
+            case 1:
+                b.append("    ").append(a).append(" public void m").append(m).append("(String s, java.util.List<String> l) {}\n");
+                break;
+            default:
+                b.append("    ").append(a).append(" public static long[] s").append(m).append("(long[][] l) {return null;}\n");
+            }
+            b.append("    public int plain").append(m).append(";\n");
+            b.append("    public void plain").append(m).append("(int i) {}\n");
+        }
+        b.append("}\n");
+        return b.toString();
+    }
+
+    /**
+     * Compiles the given sources with the annotation processor and packs the output into a jar file,
+     * with entries for directories as the usual build tools do.
+     */
+    private Path compileToJar(String name, Map<String, String> sources, List<Path> classpath, String... options) throws IOException {
+        Path out = dir.resolve(name);
+        compile(dir.resolve(name + "-src"), sources, out, classpath, true, options);
+
+        Path jar = dir.resolve(name + ".jar");
+        try (JarOutputStream jos = new JarOutputStream(Files.newOutputStream(jar)); Stream<Path> files = Files.walk(out)) {
+            for (Path f : (Iterable<Path>) files.sorted()::iterator) {
+                if (f.equals(out)) {
+                    continue;
+                }
+                String entry = out.relativize(f).toString().replace('\\', '/');
+                if (Files.isDirectory(f)) {
+                    jos.putNextEntry(new JarEntry(entry + '/'));
+                } else {
+                    jos.putNextEntry(new JarEntry(entry));
+                    Files.copy(f, jos);
+                }
+            }
+        }
+        return jar;
+    }
+
+    /**
+     * Writes out the given sources and compiles them.
+     *
+     * @param sources
+     *      Map from the path of each source file to its contents.
+     * @param process
+     *      Whether to run {@link AnnotationProcessorImpl}, rather than no annotation processor at all.
+     */
+    static void compile(Path src, Map<String, String> sources, Path out, List<Path> classpath, boolean process, String... options) throws IOException {
+        Files.createDirectories(out);
+        List<String> args = new ArrayList<>(List.of("-d", out.toString(), "-cp", classpath(classpath)));
+        if (process) {
+            args.addAll(List.of("-processor", AnnotationProcessorImpl.class.getName(), "-processorpath", location(AnnotationProcessorImpl.class).toString()));
+        } else {
+            args.add("-proc:none");
+        }
+        args.addAll(List.of(options));
+        for (Map.Entry<String, String> s : sources.entrySet()) {
+            Path f = src.resolve(s.getKey());
+            Files.createDirectories(f.getParent());
+            Files.write(f, s.getValue().getBytes(StandardCharsets.UTF_8));
+            args.add(f.toString());
+        }
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        if (javac == null) {
+            throw new IOException("Benchmarks must be run on a JDK");
+        }
+        if (javac.run(null, null, null, args.toArray(new String[0])) != 0) {
+            throw new IOException("Failed to compile into " + out);
+        }
+    }
+
+    static String classpath(List<Path> paths) {
+        StringBuilder b = new StringBuilder(location(Indexed.class).toString());
+        for (Path p : paths) {
+            b.append(java.io.File.pathSeparatorChar).append(p);
+        }
+        return b.toString();
+    }
+
+    static Path location(Class<?> c) {
+        try {
+            return Paths.get(c.getProtectionDomain().getCodeSource().getLocation().toURI());
+        } catch (URISyntaxException x) {
+            throw new IllegalStateException(x);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        loader.close();
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path f : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(f);
+            }
+        }
+    }
+}
@@ -3,44 +3,236 @@ package org.jvnet.hudson.annotation_indexer;
 import org.kohsuke.MetaInfServices;
 
 import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.ProcessingEnvironment;
 import javax.annotation.processing.Processor;
 import javax.annotation.processing.RoundEnvironment;
 import javax.annotation.processing.SupportedAnnotationTypes;
 import javax.lang.model.SourceVersion;
 import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
 import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.ModuleElement;
+import javax.lang.model.element.NestingKind;
 import javax.lang.model.element.PackageElement;
 import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
 import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
 import javax.tools.Diagnostic.Kind;
 import javax.tools.FileObject;
 import static javax.tools.StandardLocation.CLASS_OUTPUT;
-import java.io.BufferedReader;
+import static javax.tools.StandardLocation.CLASS_PATH;
+import java.io.BufferedOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.lang.annotation.Retention;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.NoSuchFileException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Creates indices of {@link Indexed} annotations.
  *
+ * <p>
+ * Supports the following options:
+ * <dl>
+ * <dt>{@code -Aannotation_indexer.binary=true}
+ * <dd>Also writes a single binary index of all the annotations of the compilation unit,
+ *     which {@link Index} reads along with the individual index files.
+ *     It records which members carry each annotation, so that {@link Index#list(Class, ClassLoader)}
+ *     only needs to look those up; the index files still tell which classes carry it.
+ * <dt>{@code -Aannotation_indexer.attributes=true}
+ * <dd>Also records the attribute values of each use in the binary index (which this implies),
+ *     so that {@link IndexedElement#getAttributes()} can tell them without loading anything.
+ * <dt>{@code -Aannotation_indexer.transitive=true}
+ * <dd>Also records, in separate index files, the elements that carry an indexed annotation only indirectly:
+ *     through annotations meta-annotated with it, at any depth,
+ *     or by inheriting an {@link java.lang.annotation.Inherited} annotation from a superclass, even one compiled elsewhere.
+ *     {@link Index#listTransitive(Class, ClassLoader)} then finds them without walking any type hierarchy.
+ * <dt>{@code -Aannotation_indexer.stats=true}
+ * <dd>Reports how much work the processor did, and how long it took, as a note at the end of the compilation.
+ * <dt>{@code -Aannotation_indexer.format=canonical}
+ * <dd>Writes the index files sorted, without duplicates, and with {@code \n} line endings whatever the platform,
+ *     so that the same sources always produce the same bytes.
+ * <dt>{@code -Aannotation_indexer.format=front-coded}
+ * <dd>Writes them like {@code canonical}, but with each name {@linkplain IndexFile#FRONT_CODED_HEADER front-coded}
+ *     against the previous one, so that a package is only spelled out once.
+ *     Such files are only understood by {@link Index} from this version on.
+ * </dl>
+ *
+ * <p>
+ * When compiling incrementally into an output directory that already has indices,
+ * their entries are kept, except for those of classes that have just been recompiled,
+ * which are only listed again if they still carry the annotation, and those of classes, packages and modules that no longer exist.
+ * The processor is registered as aggregating for Gradle incremental compilation.
+ *
  * @author Kohsuke Kawaguchi
  */
 @SupportedAnnotationTypes("*")
 @SuppressWarnings({"Since15"})
 @MetaInfServices(Processor.class)
 public class AnnotationProcessorImpl extends AbstractProcessor {
+    /**
+     * Option to write a {@link BinaryIndex}.
+     */
+    static final String BINARY_OPTION = "annotation_indexer.binary";
+    /**
+     * Option to record attribute values in the {@link BinaryIndex}.
+     */
+    static final String ATTRIBUTES_OPTION = "annotation_indexer.attributes";
+    /**
+     * Option to record indirect uses in {@link #transitiveUses}.
+     */
+    static final String TRANSITIVE_OPTION = "annotation_indexer.transitive";
+    /**
+     * Option to report {@link Stats}.
+     */
+    static final String STATS_OPTION = "annotation_indexer.stats";
+    /**
+     * Option to choose the {@link Format} of the index files.
+     */
+    static final String FORMAT_OPTION = "annotation_indexer.format";
+
+    /**
+     * Layouts of the index files.
+     */
+    enum Format {
+        /**
+         * One name per line, as given, each followed by the platform line separator.
+         */
+        DEFAULT,
+        /**
+         * One name per line, sorted and without duplicates, each followed by {@code \n}.
+         */
+        CANONICAL,
+        /**
+         * {@link #CANONICAL}, {@linkplain IndexFile#FRONT_CODED_HEADER front-coded}.
+         */
+        FRONT_CODED
+    }
+
+    /**
+     * Uses seen so far, if writing a {@link BinaryIndex}.
+     */
+    private BinaryIndex binaryIndex;
+    /**
+     * Whether to record attribute values in {@link #binaryIndex}.
+     */
+    private boolean recordAttributes;
+    /**
+     * Whether to report {@link #stats}.
+     */
+    private boolean reportStats;
+    /**
+     * How to write the index files.
+     */
+    private Format format = Format.DEFAULT;
+
+    /**
+     * Whether each annotation type seen so far is indexed, keyed by its qualified name.
+     *
+     * @see #isIndexing(TypeElement)
+     */
+    private final Map<String, Boolean> indexing = new HashMap<>();
+
+    /**
+     * FQCNs of the indexed annotations each annotation type seen so far is meta-annotated with, at any depth,
+     * keyed by its qualified name.
+     *
+     * @see #metaIndexed(TypeElement)
+     */
+    private final Map<String, Set<String>> metaIndexed = new HashMap<>();
+
+    /**
+     * {@linkplain Indexed#validators() Validators} of each indexed annotation type seen so far, keyed by its qualified name.
+     */
+    private final Map<String, List<Validator>> validators = new HashMap<>();
+    /**
+     * Validators instantiated so far, keyed by their binary name, or null for those that could not be.
+     */
+    private final Map<String, Validator> validatorInstances = new HashMap<>();
+    /**
+     * Loads the validators that the class loader of the processor cannot, created when first needed.
+     */
+    private ClassLoader validatorLoader;
+    /**
+     * Number of uses kept out of the index because validators reported errors about them.
+     */
+    private int rejected;
+    /**
+     * What validators see of the processing environment.
+     */
+    private ValidatingEnvironment validatingEnv;
+
+    private final Stats stats = new Stats();
+
+    /**
+     * Counters of the work done by the processor.
+     */
+    private static final class Stats {
+        int rounds;
+        int annotationTypes;
+        int indexedAnnotationTypes;
+        int elements;
+        int filesWritten;
+        long scanNanos;
+        long writeNanos;
+
+        @Override
+        public String toString() {
+            return String.format("annotation indexer: %d rounds, %d annotation types of which %d indexed, "
+                    + "%d annotated elements scanned in %d ms, %d index files written in %d ms",
+                    rounds, annotationTypes, indexedAnnotationTypes,
+                    elements, TimeUnit.NANOSECONDS.toMillis(scanNanos), filesWritten, TimeUnit.NANOSECONDS.toMillis(writeNanos));
+        }
+    }
+
+    /**
+     * Map from indexable annotation names, to actual uses in all the rounds so far.
+     * Written out in the last round.
+     */
+    private final Map<String, Use> uses = new TreeMap<>();
+    /**
+     * Map from indexable annotation names, to the elements that carry them only indirectly,
+     * if recording those.
+     */
+    private Map<String, Use> transitiveUses;
+
+    /**
+     * Binary names of the top-level types, and {@code pkg.*} for the packages, compiled in all the rounds so far.
+     */
+    private final Set<String> recompiled = new HashSet<>();
+    /**
+     * Names of the index files that have been written.
+     */
+    private final Set<String> written = new HashSet<>();
+
     /**
      * Use of an annotation.
      */
@@ -50,24 +242,46 @@ public class AnnotationProcessorImpl extends AbstractProcessor {
          */
         final String annotationName;
         /**
-         * Strings that designate FQCNs where annotations are used, either on a class or its members.
+         * Directory of the index file.
+         */
+        final String directory;
+        /**
+         * Strings that designate FQCNs where annotations are used, either on a class or its members,
+         * as seen in this compilation.
          */
         final Set<String> classes = new TreeSet<>();
+        /**
+         * Entries of the existing index file.
+         */
+        final List<String> existing = new ArrayList<>();
+        /**
+         * Descriptors of the annotated members of the {@link #classes},
+         * or null where those cannot be determined.
+         *
+         * @see Resolver
+         */
+        final Map<String, Set<String>> members = new HashMap<>();
+        /**
+         * Attribute values of the uses seen in this compilation, keyed by {@link Listing#key(String, String)},
+         * if recording them.
+         */
+        final Map<String, Map<String, Object>> attributes = new HashMap<>();
         /**
          * Keeps track of elements that has the annotation.
          */
         final Set<Element> originatingElements = new HashSet<>();
 
-        private Use(String annotationName) {
+        private Use(String annotationName, String directory) {
             this.annotationName = annotationName;
+            this.directory = directory;
             try {
-                classes.addAll(loadExisting());
+                existing.addAll(loadExisting());
             } catch (IOException x) {
                 processingEnv.getMessager().printMessage(Kind.ERROR, x.toString());
             }
         }
 
-        void add(Element elt) {
+        void add(Element elt, AnnotationMirror use) {
             originatingElements.add(elt);
 
             TypeElement t;
@@ -76,60 +290,201 @@ public class AnnotationProcessorImpl extends AbstractProcessor {
             case INTERFACE:
             case ANNOTATION_TYPE:
             case ENUM:
+            case RECORD:
                 t = (TypeElement) elt;
                 break;
             case METHOD:
             case FIELD:
             case CONSTRUCTOR:
+            case RECORD_COMPONENT:
                 t = (TypeElement) elt.getEnclosingElement();
                 break;
+            case PARAMETER:
+                t = (TypeElement) elt.getEnclosingElement().getEnclosingElement();
+                break;
             case PACKAGE:
-                classes.add(((PackageElement)elt).getQualifiedName().toString()+".*");
+                add(((PackageElement)elt).getQualifiedName().toString()+".*", "", use);
+                return;
+            case MODULE:
+                add(((ModuleElement)elt).getQualifiedName().toString()+"/", "", use);
                 return;
 
             default:
 //                throw new AssertionError(elt.getKind());
                 return;
             }
-            classes.add(getElementUtils().getBinaryName(t).toString());
+            add(getElementUtils().getBinaryName(t).toString(), memberDescriptor(elt), use);
+        }
+
+        private void add(String name, String member, AnnotationMirror use) {
+            classes.add(name);
+            if (member == null) {
+                members.put(name, null);
+            } else if (!members.containsKey(name) || members.get(name) != null) {
+                members.computeIfAbsent(name, k -> new TreeSet<>()).add(member);
+            }
+            if (recordAttributes && member != null && use != null)
+                attributes.put(Listing.key(name, member), attributeValues(use));
         }
 
         String getIndexFileName() {
-            return "META-INF/services/annotations/" + annotationName;
+            return directory + annotationName;
         }
 
         /**
          * Loads existing index, if it exists.
          */
         List<String> loadExisting() throws IOException {
-            List<String> elements = new ArrayList<>();
             try {
                 FileObject in = processingEnv.getFiler().getResource(CLASS_OUTPUT, "", getIndexFileName());
                 // Read existing annotations, for incremental compilation.
-                try (BufferedReader is = new BufferedReader(new InputStreamReader(in.openInputStream(), StandardCharsets.UTF_8))) {
-                    String line;
-                    while ((line=is.readLine())!=null)
-                        elements.add(line);
+                try (InputStream is = in.openInputStream()) {
+                    return readIndex(is);
                 }
             } catch (FileNotFoundException | NoSuchFileException x) {
                 // OK, created for the first time
+                return new ArrayList<>();
+            }
+        }
+
+        /**
+         * All the entries to write, once all the rounds are over.
+         */
+        Set<String> getEntries() {
+            Set<String> entries = new TreeSet<>(classes);
+            for (String name : existing) {
+                // if still annotated, in classes already
+                if (!isStale(name))
+                    entries.add(name);
             }
-            return elements;
+            return entries;
         }
 
         void write() {
-            try {
-                FileObject out = processingEnv.getFiler().createResource(CLASS_OUTPUT,
-                        "", getIndexFileName(),
-                        originatingElements.toArray(new Element[0]));
+            writeIndexFile(getIndexFileName(), getEntries(), originatingElements);
+        }
+    }
+
+    private static final String INDEX_DIRECTORY = "META-INF/services/annotations/";
+
+    private void writeIndexFile(String fileName, Collection<String> classes, Set<Element> originatingElements) {
+        written.add(fileName);
+        stats.filesWritten++;
+        try {
+            FileObject out = processingEnv.getFiler().createResource(CLASS_OUTPUT,
+                    "", fileName,
+                    originatingElements.toArray(new Element[0]));
 
+            if (format == Format.DEFAULT) {
                 try (PrintWriter w = new PrintWriter(new OutputStreamWriter(out.openOutputStream(), StandardCharsets.UTF_8))) {
                     for (String el : classes)
                         w.println(el);
                 }
-            } catch (IOException x) {
-                processingEnv.getMessager().printMessage(Kind.ERROR, x.toString());
+            } else {
+                try (OutputStream os = new BufferedOutputStream(out.openOutputStream())) {
+                    writeIndex(new TreeSet<>(classes), format == Format.FRONT_CODED, os);
+                }
+            }
+        } catch (IOException x) {
+            processingEnv.getMessager().printMessage(Kind.ERROR, x.toString());
+        }
+    }
+
+    /**
+     * Writes sorted names in the {@link Format#CANONICAL} or {@link Format#FRONT_CODED} format.
+     */
+    static void writeIndex(Collection<String> names, boolean frontCoded, OutputStream os) throws IOException {
+        if (frontCoded) {
+            os.write(IndexFile.FRONT_CODED_HEADER.getBytes(StandardCharsets.US_ASCII));
+            os.write('\n');
+        }
+        String prev = "";
+        for (String name : names) {
+            if (frontCoded) {
+                int shared = 0;
+                int max = Math.min(prev.length(), name.length());
+                while (shared < max && prev.charAt(shared) == name.charAt(shared))
+                    shared++;
+                // do not split a surrogate pair
+                if (shared > 0 && Character.isHighSurrogate(name.charAt(shared - 1)))
+                    shared--;
+                byte[] rest = name.substring(shared).getBytes(StandardCharsets.UTF_8);
+                int sharedBytes = name.getBytes(StandardCharsets.UTF_8).length - rest.length;
+                os.write((sharedBytes + " ").getBytes(StandardCharsets.US_ASCII));
+                os.write(rest);
+                prev = name;
+            } else {
+                os.write(name.getBytes(StandardCharsets.UTF_8));
             }
+            os.write('\n');
+        }
+    }
+
+    /**
+     * Determines whether an entry of an existing index should be dropped,
+     * because its class, package or module has just been recompiled or no longer exists.
+     * Only the class files of the others are looked for, and only those that are missing are looked up,
+     * so that entries left alone cost no more than a file check.
+     */
+    private boolean isStale(String name) {
+        if (recompiled.contains(name))
+            return true;
+        if (name.endsWith(".*"))
+            return !isInOutput(name.substring(0, name.length() - 1) + "package-info");
+        if (name.endsWith("/"))
+            return !isInOutput("module-info");
+        // nested in a recompiled class
+        for (int i = name.indexOf('$'); i > 0; i = name.indexOf('$', i + 1)) {
+            if (recompiled.contains(name.substring(0, i)))
+                return true;
+        }
+        return !isInOutput(name) && getTypeElement(name) == null;
+    }
+
+    /**
+     * Looks up a type by its binary name, whose {@code $} may separate nested classes or be part of a name.
+     */
+    private TypeElement getTypeElement(String binaryName) {
+        TypeElement t = getElementUtils().getTypeElement(binaryName);
+        if (t != null && getElementUtils().getBinaryName(t).contentEquals(binaryName))
+            return t;
+        for (int i = binaryName.indexOf('$'); i > 0; i = binaryName.indexOf('$', i + 1)) {
+            t = getElementUtils().getTypeElement(binaryName.substring(0, i));
+            if (t != null && (t = getNestedType(t, binaryName)) != null)
+                return t;
+        }
+        return null;
+    }
+
+    /**
+     * Looks for a type nested in another, at any depth, by its binary name.
+     */
+    private TypeElement getNestedType(TypeElement outer, String binaryName) {
+        for (TypeElement t : ElementFilter.typesIn(outer.getEnclosedElements())) {
+            String name = getElementUtils().getBinaryName(t).toString();
+            if (name.equals(binaryName))
+                return t;
+            if (binaryName.startsWith(name + '$')) {
+                TypeElement nested = getNestedType(t, binaryName);
+                if (nested != null)
+                    return nested;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks for the class file, in case the output directory is not in the class path.
+     */
+    private boolean isInOutput(String binaryName) {
+        int dot = binaryName.lastIndexOf('.');
+        try {
+            FileObject f = processingEnv.getFiler().getResource(CLASS_OUTPUT,
+                    dot < 0 ? "" : binaryName.substring(0, dot), binaryName.substring(dot + 1) + ".class");
+            f.openInputStream().close();
+            return true;
+        } catch (IOException | IllegalArgumentException x) {
+            return false;
         }
     }
 
@@ -137,13 +492,55 @@ public class AnnotationProcessorImpl extends AbstractProcessor {
         return processingEnv.getElementUtils();
     }
 
+    @Override
+    public synchronized void init(ProcessingEnvironment processingEnv) {
+        super.init(processingEnv);
+        validatingEnv = new ValidatingEnvironment(processingEnv);
+        recordAttributes = Boolean.parseBoolean(processingEnv.getOptions().get(ATTRIBUTES_OPTION));
+        reportStats = Boolean.parseBoolean(processingEnv.getOptions().get(STATS_OPTION));
+        if (recordAttributes || Boolean.parseBoolean(processingEnv.getOptions().get(BINARY_OPTION))) {
+            binaryIndex = new BinaryIndex();
+        }
+        if (Boolean.parseBoolean(processingEnv.getOptions().get(TRANSITIVE_OPTION))) {
+            transitiveUses = new TreeMap<>();
+        }
+        String f = processingEnv.getOptions().get(FORMAT_OPTION);
+        if (f != null) {
+            try {
+                format = Format.valueOf(f.toUpperCase(Locale.ROOT).replace('-', '_'));
+            } catch (IllegalArgumentException x) {
+                processingEnv.getMessager().printMessage(Kind.ERROR, "Unknown -A" + FORMAT_OPTION + "=" + f + "; expected default, canonical or front-coded");
+            }
+        }
+    }
+
     @Override
     public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
-        if (roundEnv.processingOver() || roundEnv.errorRaised())
-            // TODO we should not write until processingOver
+        // still write what was valid if the compilation failed because of validators, so that it is plain what they kept out
+        if (roundEnv.errorRaised() && !(roundEnv.processingOver() && rejected > 0))
             return false;
 
+        if (roundEnv.processingOver()) {
+            long start = System.nanoTime();
+            for (Use u : uses.values())
+                u.write();
+            if (transitiveUses != null) {
+                for (Use u : transitiveUses.values())
+                    u.write();
+            }
+            pruneIndexFiles();
+            if (binaryIndex != null)
+                writeBinaryIndex();
+            stats.writeNanos += System.nanoTime() - start;
+            if (reportStats)
+                processingEnv.getMessager().printMessage(Kind.NOTE, stats.toString());
+            return false;
+        }
+
+        long start = System.nanoTime();
+        stats.rounds++;
         execute(annotations, roundEnv);
+        stats.scanNanos += System.nanoTime() - start;
         return false;
     }
 
@@ -152,12 +549,279 @@ public class AnnotationProcessorImpl extends AbstractProcessor {
         return SourceVersion.latest();
     }
 
+    @Override
+    public Set<String> getSupportedOptions() {
+        return Set.of(BINARY_OPTION, ATTRIBUTES_OPTION, TRANSITIVE_OPTION, STATS_OPTION, FORMAT_OPTION);
+    }
+
+    /**
+     * Records the uses of the annotations of a round, to be written out in the last round.
+     */
     protected void execute(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
-        // map from indexable annotation names, to actual uses
-        Map<String,Use> output = new HashMap<>();
-        scan(annotations, roundEnv, output);
-        for (Use u : output.values())
-            u.write();
+        for (Element e : roundEnv.getRootElements()) {
+            if (e instanceof TypeElement)
+                recompiled.add(getElementUtils().getBinaryName((TypeElement) e).toString());
+            else if (e instanceof PackageElement)
+                recompiled.add(((PackageElement) e).getQualifiedName() + ".*");
+            else if (e instanceof ModuleElement)
+                recompiled.add(((ModuleElement) e).getQualifiedName() + "/");
+        }
+        scan(annotations, roundEnv, uses);
+        if (transitiveUses != null)
+            scanTransitive(annotations, roundEnv);
+    }
+
+    /**
+     * Rewrites the existing index files of annotations that are no longer used in this compilation,
+     * if they have {@linkplain #isStale stale} entries.
+     * Those of the annotations that are used have been rewritten already.
+     */
+    private void pruneIndexFiles() {
+        Map<String, List<String>> pruned = new TreeMap<>();
+        for (String dir : List.of(INDEX_DIRECTORY, Index.TRANSITIVE_PREFIX))
+            pruneIndexFiles(dir, pruned);
+        for (Map.Entry<String, List<String>> e : pruned.entrySet()) {
+            writeIndexFile(e.getKey(), e.getValue(), Set.of());
+        }
+    }
+
+    /**
+     * Collects the entries to keep of the index files in the given directory that need rewriting, keyed by file name.
+     */
+    private void pruneIndexFiles(String dir, Map<String, List<String>> pruned) {
+        try {
+            // javac does not hand out directories, so locate it through a file in it
+            FileObject f = processingEnv.getFiler().getResource(CLASS_OUTPUT, "", dir + Indexed.class.getName());
+            IndexDirectory.scan(f.toUri().resolve(".").toURL(), dir, null, (annotationName, in) -> {
+                if (written.contains(dir + annotationName))
+                    return;
+                List<String> kept = new ArrayList<>();
+                boolean stale = false;
+                for (String name : readIndex(in)) {
+                    if (isStale(name))
+                        stale = true;
+                    else
+                        kept.add(name);
+                }
+                if (stale)
+                    pruned.put(dir + annotationName, kept);
+            }, null);
+        } catch (FileNotFoundException | NoSuchFileException x) {
+            // nothing indexed yet
+        } catch (IOException | IllegalArgumentException x) {
+            // not in a directory, so not incremental either
+        }
+    }
+
+    /**
+     * Reads the names of an existing index file, in any {@link Format}.
+     */
+    private static List<String> readIndex(InputStream in) throws IOException {
+        Listing listing = new Listing();
+        Index.readIndex(in, listing);
+        return new ArrayList<>(listing.getNames());
+    }
+
+    /**
+     * Writes {@link #binaryIndex}, merged with the existing one for incremental compilation.
+     */
+    private void writeBinaryIndex() {
+        Set<Element> originatingElements = new HashSet<>();
+        for (Use u : uses.values()) {
+            for (String c : u.classes) {
+                Set<String> m = u.members.get(c);
+                binaryIndex.add(u.annotationName, c, m != null ? m.toArray(new String[0]) : null);
+                if (m != null) {
+                    for (String member : m) {
+                        Map<String, Object> values = u.attributes.get(Listing.key(c, member));
+                        if (values != null)
+                            binaryIndex.setAttributes(u.annotationName, c, member, values);
+                    }
+                }
+            }
+            originatingElements.addAll(u.originatingElements);
+        }
+        try {
+            boolean pruned = false;
+            try {
+                FileObject in = processingEnv.getFiler().getResource(CLASS_OUTPUT, "", BinaryIndex.RESOURCE);
+                BinaryIndex existing;
+                try (InputStream is = in.openInputStream()) {
+                    existing = BinaryIndex.read(is);
+                }
+                for (String a : existing.getAnnotationNames()) {
+                    Listing l = existing.getListing(a);
+                    for (int i = 0; i < l.size(); i++) {
+                        String name = l.getName(i);
+                        if (isStale(name)) {
+                            // if still annotated, already in binaryIndex
+                            pruned = true;
+                            continue;
+                        }
+                        String[] members = l.getMembers(i);
+                        binaryIndex.add(a, name, members);
+                        if (members != null) {
+                            for (String m : members) {
+                                Map<String, Object> values = l.getAttributes(name, m);
+                                if (!values.isEmpty())
+                                    binaryIndex.setAttributes(a, name, m, values);
+                            }
+                        }
+                    }
+                }
+            } catch (FileNotFoundException | NoSuchFileException x) {
+                // OK, created for the first time
+            }
+            if (originatingElements.isEmpty() && !pruned)
+                return;
+            // entries only found in the existing text files, without a binary index to tell their members
+            for (Use u : uses.values()) {
+                List<String> missing = new ArrayList<>();
+                for (String c : u.getEntries()) {
+                    if (!binaryIndex.contains(u.annotationName, c))
+                        missing.add(c);
+                }
+                for (String c : missing) {
+                    binaryIndex.add(u.annotationName, c, null);
+                }
+            }
+
+            FileObject out = processingEnv.getFiler().createResource(CLASS_OUTPUT,
+                    "", BinaryIndex.RESOURCE,
+                    originatingElements.toArray(new Element[0]));
+            try (OutputStream os = out.openOutputStream()) {
+                binaryIndex.write(os);
+            }
+            stats.filesWritten++;
+        } catch (IOException x) {
+            processingEnv.getMessager().printMessage(Kind.ERROR, x.toString());
+        }
+    }
+
+    /**
+     * Computes the descriptor of an annotated element as understood by {@link Resolver},
+     * or null if it cannot be determined.
+     */
+    private String memberDescriptor(Element elt) {
+        switch (elt.getKind()) {
+        case FIELD:
+            return elt.getSimpleName().toString();
+        case RECORD_COMPONENT:
+            return ":" + elt.getSimpleName();
+        case PARAMETER:
+            ExecutableElement x = (ExecutableElement) elt.getEnclosingElement();
+            String d = memberDescriptor(x);
+            // reflection counts the parameters of the descriptor
+            return d == null ? null : d + '#' + (syntheticParameters(x) + x.getParameters().indexOf(elt));
+        case METHOD:
+        case CONSTRUCTOR:
+            ExecutableElement e = (ExecutableElement) elt;
+            TypeElement owner = (TypeElement) e.getEnclosingElement();
+            StringBuilder b = new StringBuilder().append(e.getSimpleName()).append('(');
+            if (syntheticParameters(e) == 2) {
+                b.append("Ljava/lang/String;I");
+            } else if (syntheticParameters(e) == 1 && !appendDescriptor(b, owner.getEnclosingElement().asType())) {
+                return null;
+            }
+            for (VariableElement p : e.getParameters()) {
+                if (!appendDescriptor(b, p.asType()))
+                    return null;
+            }
+            b.append(')');
+            return appendDescriptor(b, e.getReturnType()) ? b.toString() : null;
+        default:
+            return "";
+        }
+    }
+
+    /**
+     * Counts the parameters javac adds in front of those of a constructor:
+     * the name and ordinal of an enum constant, or the enclosing instance of an inner class.
+     */
+    private static int syntheticParameters(ExecutableElement e) {
+        if (e.getKind() != ElementKind.CONSTRUCTOR)
+            return 0;
+        TypeElement owner = (TypeElement) e.getEnclosingElement();
+        if (owner.getKind() == ElementKind.ENUM)
+            return 2;
+        if (owner.getNestingKind() == NestingKind.MEMBER && owner.getKind() == ElementKind.CLASS
+                && !owner.getModifiers().contains(Modifier.STATIC))
+            return 1;
+        return 0;
+    }
+
+    /**
+     * Appends the JVM descriptor of the erasure of the given type.
+     *
+     * @return false if the type cannot be described, for example because it has not been generated yet.
+     */
+    private boolean appendDescriptor(StringBuilder b, TypeMirror t) {
+        if (t.getKind() == TypeKind.TYPEVAR || t.getKind() == TypeKind.DECLARED)
+            t = processingEnv.getTypeUtils().erasure(t);
+        switch (t.getKind()) {
+        case BOOLEAN:   b.append('Z'); return true;
+        case BYTE:      b.append('B'); return true;
+        case CHAR:      b.append('C'); return true;
+        case SHORT:     b.append('S'); return true;
+        case INT:       b.append('I'); return true;
+        case LONG:      b.append('J'); return true;
+        case FLOAT:     b.append('F'); return true;
+        case DOUBLE:    b.append('D'); return true;
+        case VOID:      b.append('V'); return true;
+        case ARRAY:
+            b.append('[');
+            return appendDescriptor(b, ((ArrayType) t).getComponentType());
+        case DECLARED:
+            String name = getElementUtils().getBinaryName((TypeElement) ((DeclaredType) t).asElement()).toString();
+            b.append('L').append(name.replace('.', '/')).append(';');
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Converts the attribute values of a use of an annotation as documented in {@link IndexedElement#getAttributes()}.
+     */
+    private Map<String, Object> attributeValues(AnnotationMirror a) {
+        Map<String, Object> values = new TreeMap<>();
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> e : getElementUtils().getElementValuesWithDefaults(a).entrySet()) {
+            Object v = attributeValue(e.getValue());
+            if (v != null)
+                values.put(e.getKey().getSimpleName().toString(), v);
+        }
+        return values;
+    }
+
+    /**
+     * @return null if the value cannot be recorded.
+     */
+    private Object attributeValue(AnnotationValue av) {
+        Object v = av.getValue();
+        if (v instanceof TypeMirror) {
+            TypeMirror t = (TypeMirror) v;
+            if (t.getKind() == TypeKind.DECLARED)
+                return getElementUtils().getBinaryName((TypeElement) ((DeclaredType) t).asElement()).toString();
+            return t.getKind() == TypeKind.ERROR ? null : t.toString();
+        }
+        if (v instanceof VariableElement)
+            return ((VariableElement) v).getSimpleName().toString();
+        if (v instanceof AnnotationMirror)
+            return null;
+        if (v instanceof List) {
+            @SuppressWarnings("unchecked")
+            List<? extends AnnotationValue> items = (List<? extends AnnotationValue>) v;
+            List<Object> l = new ArrayList<>();
+            for (AnnotationValue o : items) {
+                Object item = attributeValue(o);
+                if (item == null)
+                    return null;
+                l.add(item);
+            }
+            return l;
+        }
+        // boxed primitive or String
+        return v;
     }
 
     protected AnnotationMirror findAnnotationOn(Element e, String name) {
@@ -170,33 +834,300 @@ public class AnnotationProcessorImpl extends AbstractProcessor {
     private void scan(Set<? extends TypeElement> annotations,
             RoundEnvironment roundEnv, Map<String,Use> output) {
         for (TypeElement ann : annotations) {
-            if (!isIndexing(ann))
+            if (!isIndexingMemoized(ann))
                 continue;   // not indexed
 
-
-            AnnotationMirror retention = findAnnotationOn(ann, Retention.class.getName());
-            if (retention == null) {
-                processingEnv.getMessager().printMessage(Kind.WARNING, "Specify @Retention(RUNTIME)", ann);
-            } else {
-                // XXX check that it is RUNTIME?
-            }
-
             String annName = getElementUtils().getBinaryName(ann).toString();
             Use o = output.get(annName);
             if (o==null)
-                output.put(annName,o=new Use(annName));
+                output.put(annName,o=new Use(annName, INDEX_DIRECTORY));
+
+            List<Validator> vs = validators.getOrDefault(ann.getQualifiedName().toString(), List.of());
+            for (Element elt : roundEnv.getElementsAnnotatedWith(ann)) {
+                stats.elements++;
+
+                if (!vs.isEmpty() && !isValid(elt, vs, roundEnv))
+                    continue;   // keep it out of the index, as it would fail at runtime anyway
+
+                // the mirror is only needed for its attribute values
+                o.add(elt, recordAttributes ? findAnnotationOn(elt, ann) : null);
+            }
+        }
+    }
 
+    /**
+     * Records the elements of a round that carry indexed annotations indirectly,
+     * through meta-annotations or {@link java.lang.annotation.Inherited} annotations of their superclasses.
+     * Those directly annotated are only recorded by {@link #scan}.
+     */
+    private void scanTransitive(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (TypeElement ann : annotations) {
+            Set<String> meta = metaIndexed(ann);
+            if (meta.isEmpty())
+                continue;
             for (Element elt : roundEnv.getElementsAnnotatedWith(ann)) {
-                AnnotationMirror marked = findAnnotationOn(elt,annName);
-                assert marked != null;
+                for (String a : meta)
+                    transitiveUse(a).add(elt, null);
+            }
+        }
+        for (TypeElement t : ElementFilter.typesIn(roundEnv.getRootElements()))
+            scanInherited(t);
+    }
+
+    /**
+     * Records a class, and its nested classes, under the indexed annotations it inherits from its superclasses,
+     * or that those it inherits are meta-annotated with.
+     * Superclasses compiled elsewhere are looked at too, so that it does not matter where the annotation is.
+     */
+    private void scanInherited(TypeElement t) {
+        Set<Element> direct = new HashSet<>();
+        for (AnnotationMirror a : t.getAnnotationMirrors())
+            direct.add(a.getAnnotationType().asElement());
+        for (AnnotationMirror a : getElementUtils().getAllAnnotationMirrors(t)) {
+            TypeElement ann = (TypeElement) a.getAnnotationType().asElement();
+            if (direct.contains(ann))
+                continue;   // not inherited
+            if (isIndexingMemoized(ann))
+                transitiveUse(getElementUtils().getBinaryName(ann).toString()).add(t, null);
+            for (String m : metaIndexed(ann))
+                transitiveUse(m).add(t, null);
+        }
+        for (TypeElement nested : ElementFilter.typesIn(t.getEnclosedElements()))
+            scanInherited(nested);
+    }
+
+    private Use transitiveUse(String annotationName) {
+        return transitiveUses.computeIfAbsent(annotationName, k -> new Use(k, Index.TRANSITIVE_PREFIX));
+    }
+
+    /**
+     * Finds the indexed annotations an annotation type is meta-annotated with, at any depth,
+     * once per annotation type in the whole compilation.
+     *
+     * @return
+     *      their FQCNs, not including the annotation type itself.
+     */
+    private Set<String> metaIndexed(TypeElement ann) {
+        String name = ann.getQualifiedName().toString();
+        Set<String> result = metaIndexed.get(name);
+        if (result == null) {
+            result = new TreeSet<>();
+            Set<Element> seen = new HashSet<>();
+            seen.add(ann);
+            Deque<TypeElement> todo = new ArrayDeque<>();
+            todo.add(ann);
+            while (!todo.isEmpty()) {
+                for (AnnotationMirror a : todo.remove().getAnnotationMirrors()) {
+                    TypeElement meta = (TypeElement) a.getAnnotationType().asElement();
+                    if (!seen.add(meta))
+                        continue;   // such as @Documented, which documents itself
+                    if (isIndexingMemoized(meta))
+                        result.add(getElementUtils().getBinaryName(meta).toString());
+                    todo.add(meta);
+                }
+            }
+            metaIndexed.put(name, result);
+        }
+        return result;
+    }
+
+    /**
+     * Calls {@link #isIndexing(TypeElement)} once per annotation type in the whole compilation,
+     * also checking its retention the first time an indexed one is seen.
+     */
+    private boolean isIndexingMemoized(TypeElement ann) {
+        String name = ann.getQualifiedName().toString();
+        Boolean b = indexing.get(name);
+        if (b == null) {
+            stats.annotationTypes++;
+            b = isIndexing(ann);
+            indexing.put(name, b);
+            if (b) {
+                stats.indexedAnnotationTypes++;
+                AnnotationMirror retention = findAnnotationOn(ann, Retention.class.getName());
+                if (retention == null) {
+                    processingEnv.getMessager().printMessage(Kind.WARNING, "Specify @Retention(RUNTIME)", ann);
+                } else {
+                    // XXX check that it is RUNTIME?
+                }
+                validators.put(name, loadValidators(ann));
+            }
+        }
+        return b;
+    }
 
-                // TODO: validator support
+    /**
+     * Instantiates the {@linkplain Indexed#validators() validators} of an indexed annotation type,
+     * each validator class only once in the whole compilation.
+     * Those that the class loader of the processor cannot load are looked up in the class path of the compilation;
+     * those that cannot be loaded either way, such as those compiled along with the annotation, are skipped with a warning.
+     */
+    private List<Validator> loadValidators(TypeElement ann) {
+        AnnotationMirror indexed = findAnnotationOn(ann, Indexed.class.getName());
+        if (indexed == null)
+            return List.of();   // subclass indexing more than @Indexed
+        List<Validator> result = new ArrayList<>();
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> e : indexed.getElementValues().entrySet()) {
+            if (!e.getKey().getSimpleName().contentEquals("validators") || !(e.getValue().getValue() instanceof List))
+                continue;
+            for (Object o : (List<?>) e.getValue().getValue()) {
+                Object t = ((AnnotationValue) o).getValue();
+                if (!(t instanceof DeclaredType))
+                    continue;
+                String name = getElementUtils().getBinaryName((TypeElement) ((DeclaredType) t).asElement()).toString();
+                if (!validatorInstances.containsKey(name)) {
+                    Validator v = null;
+                    try {
+                        if (validatorLoader == null)
+                            validatorLoader = new ClassPathLoader();
+                        v = Class.forName(name, true, validatorLoader)
+                                .asSubclass(Validator.class).getDeclaredConstructor().newInstance();
+                    } catch (ReflectiveOperationException | LinkageError | RuntimeException x) {
+                        processingEnv.getMessager().printMessage(Kind.WARNING,
+                                "Validator " + name + " cannot be loaded by the annotation processor, so it is not run: " + x, ann);
+                    }
+                    validatorInstances.put(name, v);
+                }
+                Validator v = validatorInstances.get(name);
+                if (v != null)
+                    result.add(v);
+            }
+        }
+        return result;
+    }
 
-                o.add(elt);
+    /**
+     * Runs validators on a use of their annotation.
+     *
+     * @return false if any of them reported an error
+     */
+    private boolean isValid(Element elt, List<Validator> vs, RoundEnvironment roundEnv) {
+        validatingEnv.errors = 0;
+        for (Validator v : vs)
+            v.check(elt, roundEnv, validatingEnv);
+        if (validatingEnv.errors == 0)
+            return true;
+        rejected++;
+        return false;
+    }
+
+    /**
+     * Loads classes from the class path of the compilation, through the {@link Filer},
+     * after the class loader of the processor, which only sees the processor path when there is one.
+     */
+    private final class ClassPathLoader extends ClassLoader {
+        ClassPathLoader() {
+            super(AnnotationProcessorImpl.class.getClassLoader());
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            int dot = name.lastIndexOf('.');
+            try {
+                FileObject f = processingEnv.getFiler().getResource(CLASS_PATH,
+                        dot < 0 ? "" : name.substring(0, dot), name.substring(dot + 1) + ".class");
+                byte[] b;
+                try (InputStream is = f.openInputStream()) {
+                    b = is.readAllBytes();
+                }
+                return defineClass(name, b, 0, b.length);
+            } catch (IOException | IllegalArgumentException x) {
+                throw new ClassNotFoundException(name, x);
             }
         }
     }
 
+    /**
+     * Processing environment handed to {@link Validator}s, which counts the errors they report.
+     */
+    private static final class ValidatingEnvironment implements ProcessingEnvironment, Messager {
+        private final ProcessingEnvironment env;
+        int errors;
+
+        ValidatingEnvironment(ProcessingEnvironment env) {
+            this.env = env;
+        }
+
+        @Override
+        public Messager getMessager() {
+            return this;
+        }
+
+        @Override
+        public void printMessage(Kind kind, CharSequence msg) {
+            count(kind);
+            env.getMessager().printMessage(kind, msg);
+        }
+
+        @Override
+        public void printMessage(Kind kind, CharSequence msg, Element e) {
+            count(kind);
+            env.getMessager().printMessage(kind, msg, e);
+        }
+
+        @Override
+        public void printMessage(Kind kind, CharSequence msg, Element e, AnnotationMirror a) {
+            count(kind);
+            env.getMessager().printMessage(kind, msg, e, a);
+        }
+
+        @Override
+        public void printMessage(Kind kind, CharSequence msg, Element e, AnnotationMirror a, AnnotationValue v) {
+            count(kind);
+            env.getMessager().printMessage(kind, msg, e, a, v);
+        }
+
+        private void count(Kind kind) {
+            if (kind == Kind.ERROR)
+                errors++;
+        }
+
+        @Override
+        public Map<String, String> getOptions() {
+            return env.getOptions();
+        }
+
+        @Override
+        public Filer getFiler() {
+            return env.getFiler();
+        }
+
+        @Override
+        public Elements getElementUtils() {
+            return env.getElementUtils();
+        }
+
+        @Override
+        public Types getTypeUtils() {
+            return env.getTypeUtils();
+        }
+
+        @Override
+        public SourceVersion getSourceVersion() {
+            return env.getSourceVersion();
+        }
+
+        @Override
+        public Locale getLocale() {
+            return env.getLocale();
+        }
+
+        @Override
+        public boolean isPreviewEnabled() {
+            return env.isPreviewEnabled();
+        }
+    }
+
+    /**
+     * Finds the use of the given annotation, which may be inherited, without going through binary names.
+     */
+    private AnnotationMirror findAnnotationOn(Element e, TypeElement ann) {
+        for (AnnotationMirror a : getElementUtils().getAllAnnotationMirrors(e))
+            if (a.getAnnotationType().asElement().equals(ann))
+                return a;
+        return null;
+    }
+
     /**
      * Given a {@link TypeElement} that represents the annotation class,
      * determines whether to index this annotation.
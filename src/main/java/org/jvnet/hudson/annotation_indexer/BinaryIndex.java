@@ -0,0 +1,289 @@
+package org.jvnet.hudson.annotation_indexer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Consolidated index of all the {@link Indexed} annotations of a compilation unit,
+ * stored in a single {@link #RESOURCE} next to the per-annotation index files.
+ *
+ * <p>
+ * The file consists of:
+ * <ol>
+ * <li>the {@link #MAGIC} number and the format {@link #VERSION},
+ * <li>a sorted string table, each string in modified UTF-8 as per {@link DataOutputStream#writeUTF(String)},
+ * <li>for each annotation, the id of its name followed by its entries sorted by id.
+ *     Each entry is the id of a name as it would appear in the per-annotation index file,
+ *     followed by the number of annotated members ({@code -1} if not recorded) and the ids of their descriptors.
+ *     Since version 2, each member descriptor is followed by the number of recorded attribute values of the annotation,
+ *     and for each of them the id of its name and its {@linkplain #writeValue tagged value}.
+ * </ol>
+ * Since the string table is sorted, entries sorted by id are also sorted by name.
+ */
+final class BinaryIndex {
+    /**
+     * Resource path of the binary index.
+     */
+    static final String RESOURCE = "META-INF/annotations.idx";
+
+    static final int MAGIC = 0x414e4958; // "ANIX"
+
+    static final int VERSION = 2;
+
+    /**
+     * From the FQCN of an annotation to its uses.
+     */
+    private final SortedMap<String, Listing> annotations = new TreeMap<>();
+
+    /**
+     * Records a use of an annotation.
+     *
+     * @param members
+     *      Descriptors of the annotated members, or null if not known,
+     *      in which case the entry is resolved by looking at all the members.
+     */
+    void add(String annotationName, String name, String[] members) {
+        annotations.computeIfAbsent(annotationName, k -> new Listing()).add(name, members);
+    }
+
+    /**
+     * Records the attribute values of an annotation on a member.
+     */
+    void setAttributes(String annotationName, String name, String member, Map<String, Object> values) {
+        annotations.computeIfAbsent(annotationName, k -> new Listing()).setAttributes(name, member, values);
+    }
+
+    boolean contains(String annotationName, String name) {
+        Listing l = annotations.get(annotationName);
+        return l != null && l.contains(name);
+    }
+
+    /**
+     * Adds everything recorded in another index to this one.
+     */
+    void addAll(BinaryIndex other) {
+        for (Map.Entry<String, Listing> a : other.annotations.entrySet()) {
+            addAll(a.getKey(), a.getValue());
+        }
+    }
+
+    /**
+     * Adds all the uses of an annotation recorded in a listing.
+     */
+    void addAll(String annotationName, Listing listing) {
+        annotations.computeIfAbsent(annotationName, k -> new Listing()).addAll(listing);
+    }
+
+    /**
+     * FQCNs of the annotations recorded.
+     */
+    Set<String> getAnnotationNames() {
+        return Collections.unmodifiableSet(annotations.keySet());
+    }
+
+    /**
+     * Uses of the given annotation.
+     */
+    Listing getListing(String annotationName) {
+        return annotations.getOrDefault(annotationName, Listing.EMPTY);
+    }
+
+    void write(OutputStream os) throws IOException {
+        Set<String> strings = new TreeSet<>(annotations.keySet());
+        for (Listing l : annotations.values()) {
+            for (int i = 0; i < l.size(); i++) {
+                String name = l.getName(i);
+                strings.add(name);
+                String[] members = l.getMembers(i);
+                if (members == null) {
+                    continue;
+                }
+                for (String m : members) {
+                    strings.add(m);
+                    Map<String, Object> values = l.getAttributes(name, m);
+                    strings.addAll(values.keySet());
+                    for (Object v : values.values()) {
+                        collectStrings(v, strings);
+                    }
+                }
+            }
+        }
+        Map<String, Integer> ids = new HashMap<>();
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(strings.size());
+        for (String s : strings) {
+            ids.put(s, ids.size());
+            out.writeUTF(s);
+        }
+        out.writeInt(annotations.size());
+        for (Map.Entry<String, Listing> a : annotations.entrySet()) {
+            Listing l = a.getValue();
+            out.writeInt(ids.get(a.getKey()));
+            out.writeInt(l.size());
+            for (int i = 0; i < l.size(); i++) {
+                String name = l.getName(i);
+                out.writeInt(ids.get(name));
+                if (l.getMembers(i) == null) {
+                    out.writeInt(-1);
+                    continue;
+                }
+                // sorted the same as their ids
+                String[] members = l.getMembers(i).clone();
+                Arrays.sort(members);
+                out.writeInt(members.length);
+                for (String m : members) {
+                    out.writeInt(ids.get(m));
+                    Map<String, Object> values = new TreeMap<>(l.getAttributes(name, m));
+                    out.writeInt(values.size());
+                    for (Map.Entry<String, Object> v : values.entrySet()) {
+                        out.writeInt(ids.get(v.getKey()));
+                        writeValue(out, v.getValue(), ids);
+                    }
+                }
+            }
+        }
+        out.flush();
+    }
+
+    private static void collectStrings(Object v, Set<String> strings) {
+        if (v instanceof String) {
+            strings.add((String) v);
+        } else if (v instanceof List) {
+            for (Object o : (List<?>) v) {
+                collectStrings(o, strings);
+            }
+        }
+    }
+
+    /**
+     * Writes an attribute value, as a one byte tag followed by the value:
+     * the JVM descriptor of the type for primitives,
+     * {@code s} for a string, followed by its id,
+     * or {@code [} for an array, followed by its length and values.
+     * Enum constants and classes are recorded by their names.
+     */
+    private static void writeValue(DataOutputStream out, Object v, Map<String, Integer> ids) throws IOException {
+        if (v instanceof Boolean) {
+            out.writeByte('Z');
+            out.writeBoolean((Boolean) v);
+        } else if (v instanceof Byte) {
+            out.writeByte('B');
+            out.writeByte((Byte) v);
+        } else if (v instanceof Character) {
+            out.writeByte('C');
+            out.writeChar((Character) v);
+        } else if (v instanceof Short) {
+            out.writeByte('S');
+            out.writeShort((Short) v);
+        } else if (v instanceof Integer) {
+            out.writeByte('I');
+            out.writeInt((Integer) v);
+        } else if (v instanceof Long) {
+            out.writeByte('J');
+            out.writeLong((Long) v);
+        } else if (v instanceof Float) {
+            out.writeByte('F');
+            out.writeFloat((Float) v);
+        } else if (v instanceof Double) {
+            out.writeByte('D');
+            out.writeDouble((Double) v);
+        } else if (v instanceof String) {
+            out.writeByte('s');
+            out.writeInt(ids.get(v));
+        } else if (v instanceof List) {
+            List<?> l = (List<?>) v;
+            out.writeByte('[');
+            out.writeInt(l.size());
+            for (Object o : l) {
+                writeValue(out, o, ids);
+            }
+        } else {
+            throw new IllegalArgumentException("Unsupported attribute value " + v);
+        }
+    }
+
+    private static Object readValue(DataInputStream in, String[] strings) throws IOException {
+        int tag = in.readByte();
+        switch (tag) {
+        case 'Z': return in.readBoolean();
+        case 'B': return in.readByte();
+        case 'C': return in.readChar();
+        case 'S': return in.readShort();
+        case 'I': return in.readInt();
+        case 'J': return in.readLong();
+        case 'F': return in.readFloat();
+        case 'D': return in.readDouble();
+        case 's': return strings[in.readInt()];
+        case '[':
+            int n = in.readInt();
+            List<Object> l = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                l.add(readValue(in, strings));
+            }
+            return Collections.unmodifiableList(l);
+        default:
+            throw new IOException("Unknown attribute value tag " + tag);
+        }
+    }
+
+    static BinaryIndex read(InputStream is) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not an annotation index");
+        }
+        int version = in.readInt();
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported annotation index version " + version);
+        }
+        String[] strings = new String[in.readInt()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = in.readUTF();
+        }
+        BinaryIndex index = new BinaryIndex();
+        for (int a = in.readInt(); a > 0; a--) {
+            Listing l = new Listing();
+            index.annotations.put(strings[in.readInt()], l);
+            for (int e = in.readInt(); e > 0; e--) {
+                String name = strings[in.readInt()];
+                int n = in.readInt();
+                String[] members = null;
+                if (n >= 0) {
+                    members = new String[n];
+                    for (int i = 0; i < n; i++) {
+                        members[i] = strings[in.readInt()];
+                        if (version >= 2) {
+                            int count = in.readInt();
+                            Map<String, Object> values = new TreeMap<>();
+                            for (int j = 0; j < count; j++) {
+                                values.put(strings[in.readInt()], readValue(in, strings));
+                            }
+                            if (!values.isEmpty()) {
+                                l.setAttributes(name, members[i], values);
+                            }
+                        }
+                    }
+                }
+                l.add(name, members);
+            }
+        }
+        return index;
+    }
+}
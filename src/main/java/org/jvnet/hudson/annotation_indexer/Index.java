@@ -1,22 +1,52 @@
 package org.jvnet.hudson.annotation_indexer;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.AnnotatedElement;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * @author Kohsuke Kawaguchi
@@ -28,81 +58,849 @@ public class Index {
      * <p>
      * Historically we put things under META-INF/annotations.
      */
-    private static final List<String> PREFIXES = Arrays.asList("META-INF/annotations/", "META-INF/services/annotations/");
+    static final List<String> PREFIXES = Arrays.asList("META-INF/annotations/", "META-INF/services/annotations/");
+
+    /**
+     * Resource path of the index files of elements that only carry an annotation indirectly.
+     *
+     * @see #listTransitive(Class, ClassLoader)
+     */
+    static final String TRANSITIVE_PREFIX = "META-INF/services/annotations-transitive/";
+
+    /**
+     * Whether index files read through a {@link ClassLoader} are remembered.
+     *
+     * @see #setCaching(boolean)
+     */
+    static volatile boolean caching = Boolean.getBoolean(Index.class.getName() + ".cache");
+
+    /**
+     * Told about the work done by lookups, if any.
+     *
+     * @see #setListener(IndexListener)
+     */
+    static volatile IndexListener listener;
+
+    /**
+     * Turns on or off caching of parsed index files.
+     *
+     * <p>
+     * When enabled, the class names listed for an annotation are read once per {@link ClassLoader}
+     * and subsequent lookups are served from memory, without enumerating resources again.
+     * Class loaders are held weakly, so this does not prevent them from being garbage collected.
+     * It is the caller's responsibility to {@linkplain #invalidate(ClassLoader) invalidate} a class loader
+     * whose set of resources changes, such as one that aggregates dynamically loaded plugins.
+     *
+     * <p>
+     * Listed classes that cannot be loaded are also remembered, and skipped until then.
+     * So are annotations without any index file, which are told apart by listing the index directories once:
+     * those of the jar files and directories of the class path of {@link java.net.URLClassLoader}s and the application class loader,
+     * without looking up any resource,
+     * or else those returned by {@link ClassLoader#getResources(String)} along with those of the jar files with a manifest.
+     * The entries of each jar file are listed once per class loader, and shared with {@link #listClassNames(Collection, ClassLoader)}.
+     *
+     * <p>
+     * Off by default; can also be turned on with the {@code org.jvnet.hudson.annotation_indexer.Index.cache} system property.
+     */
+    public static void setCaching(boolean enabled) {
+        caching = enabled;
+        if (!enabled) {
+            LoaderCache.invalidateAll();
+        }
+    }
+
+    /**
+     * Installs a listener to be told about the work done by lookups, such as a {@link JfrIndexListener},
+     * or removes it if null.
+     * Nothing is measured while there is none.
+     */
+    public static void setListener(IndexListener listener) {
+        Index.listener = listener;
+    }
+
+    /**
+     * Discards anything remembered about the given class loader,
+     * so that the next lookup reads the index files again.
+     *
+     * @see #setCaching(boolean)
+     */
+    public static void invalidate(ClassLoader cl) {
+        LoaderCache.invalidate(cl);
+    }
+
+    /**
+     * Forgets which listed classes could not be loaded by the given class loader,
+     * so that the next lookup tries again, such as after it gained access to more classes.
+     * Unlike {@link #invalidate(ClassLoader)}, index files are not read again.
+     *
+     * @see #setCaching(boolean)
+     */
+    public static void invalidateMissing(ClassLoader cl) {
+        LoaderCache.of(cl).clearMissing();
+    }
+
+    /**
+     * Discards anything remembered about any class loader.
+     *
+     * @see #setCaching(boolean)
+     */
+    public static void invalidateAll() {
+        LoaderCache.invalidateAll();
+    }
 
     /**
      * Lists up all the elements annotated by the given annotation and of the given {@link AnnotatedElement} subtype.
      */
     public static <T extends AnnotatedElement> Iterable<T> list(Class<? extends Annotation> type, ClassLoader cl, final Class<T> subType) throws IOException {
-        final Iterable<AnnotatedElement> base = list(type,cl);
-        return new Iterable<>() {
-            @Override
-            public Iterator<T> iterator() {
-                return new SubtypeIterator<>(base.iterator(), subType);
-            }
-        };
+        return list(type, cl, Resolver.kindsOf(subType));
     }
 
     /**
      * Lists the names of classes annotated by the given annotation.
      * Typically you should use {@link #list(Class, ClassLoader, Class)} instead,
      * but this lower-level method can be used for clients doing bytecode inspection or manipulation rather than class loading.
+     *
+     * <p>
+     * The returned set is sorted, and a copy the caller is free to modify.
      */
     public static Set<String> listClassNames(Class<? extends Annotation> type, ClassLoader cl) throws IOException {
 // To allow annotations defined by 3rd parties to be indexable, skip this check
 //        if (!type.isAnnotationPresent(Indexed.class))
 //            throw new IllegalArgumentException(type+" doesn't have @Indexed");
 
-        Set<String> ids = new TreeSet<>();
+        return new TreeSet<>(listing(type.getName(), cl).getNames());
+    }
 
-        for (String prefix : PREFIXES) {
-            final Enumeration<URL> res = cl.getResources(prefix + type.getName());
+    /**
+     * Lists the names of classes annotated by the given annotation, like {@link #listClassNames(Class, ClassLoader)},
+     * but reading the index files found in different jar files and directories concurrently,
+     * so that the time it takes to open each of them overlaps.
+     *
+     * <p>
+     * Only the resources are enumerated in the calling thread, which then waits for the reads to complete,
+     * and neither it nor the tasks reading hold any monitor while doing I/O,
+     * so that this can be called from virtual threads without pinning their carrier threads
+     * (unless the class loader itself synchronizes when enumerating or opening resources).
+     *
+     * @param executor
+     *      Runs one task per index file, or if null, a new virtual thread per task where supported (Java 21 and later),
+     *      or else a shared pool of daemon threads.
+     */
+    public static Set<String> listClassNames(Class<? extends Annotation> type, ClassLoader cl, Executor executor) throws IOException {
+        return new TreeSet<>(listing(type.getName(), cl, executor != null ? executor : DefaultExecutor.INSTANCE).getNames());
+    }
+
+    /**
+     * Runs each task in a new virtual thread where supported, or else in a shared pool of daemon threads.
+     */
+    private static final class DefaultExecutor {
+        static final Executor INSTANCE = create();
+
+        private static Executor create() {
+            try {
+                // Java 21 and later
+                return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException x) {
+                AtomicInteger count = new AtomicInteger();
+                return Executors.newCachedThreadPool(r -> {
+                    Thread t = new Thread(r, "Annotation index reader " + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+            }
+        }
+    }
+
+    /**
+     * Lists the uses of the given annotation, going through the cache if enabled.
+     */
+    private static Listing listing(String annotationName, ClassLoader cl) throws IOException {
+        return listing(annotationName, cl, null);
+    }
+
+    /**
+     * Lists the uses of the given annotation, going through the cache if enabled.
+     *
+     * @param executor
+     *      Reads the index files concurrently if not null.
+     */
+    private static Listing listing(String annotationName, ClassLoader cl, Executor executor) throws IOException {
+        if (!caching) {
+            return readListing(annotationName, cl, false, executor);
+        }
+        LoaderCache cache = LoaderCache.of(cl);
+        Listing listing = cache.getListing(annotationName);
+        if (listing == null) {
+            listing = isIndexed(annotationName, cl) ? readListing(annotationName, cl, false, executor) : Listing.EMPTY;
+            cache.putListing(annotationName, listing);
+        }
+        return listing;
+    }
+
+    /**
+     * Whether the annotation may have index files visible to the class loader, as far as can be told without looking them up.
+     */
+    private static boolean isIndexed(String annotationName, ClassLoader cl) throws IOException {
+        Set<String> indexed = indexedAnnotations(cl);
+        return indexed == LoaderCache.UNKNOWN || indexed.contains(annotationName);
+    }
+
+    /**
+     * FQCNs of the annotations that have index files visible to the class loader,
+     * found by {@linkplain #scanDirectories going through} its index directories once, when caching,
+     * without reading any index file.
+     *
+     * @return
+     *      {@link LoaderCache#UNKNOWN} if some index directory could not be listed,
+     *      so that the absence of an index file cannot be proven.
+     */
+    private static Set<String> indexedAnnotations(ClassLoader cl) throws IOException {
+        LoaderCache cache = LoaderCache.of(cl);
+        Set<String> indexed = cache.getIndexedAnnotations();
+        if (indexed == null) {
+            Set<String> names = new HashSet<>();
+            IndexDirectory.Visitor collector = new IndexDirectory.Visitor() {
+                @Override
+                public boolean accept(String annotationName) {
+                    names.add(annotationName);
+                    return false;
+                }
+
+                @Override
+                public void visit(String annotationName, InputStream in) {
+                    throw new AssertionError();
+                }
+            };
+            indexed = scanDirectories(cl, cache, false, (dir, root, prefix) ->
+                    dir != null ? IndexDirectory.scan(dir, prefix, null, collector, cache) : IndexDirectory.scanRoot(root, prefix, null, collector, cache))
+                    ? names : LoaderCache.UNKNOWN;
+            cache.setIndexedAnnotations(indexed);
+        }
+        return indexed;
+    }
+
+    /**
+     * Reads all the index files of the given annotation visible to the class loader.
+     *
+     * @param transitive
+     *      Whether to read those of the elements that only carry it indirectly, which binary indices do not record.
+     * @param executor
+     *      Reads each index file in a separate task if not null, the results being merged in the same order.
+     * @return
+     *      {@linkplain Listing#compact() compacted} listing
+     */
+    private static Listing readListing(String annotationName, ClassLoader cl, boolean transitive, Executor executor) throws IOException {
+        IndexListener listener = Index.listener;
+        long start = listener != null ? System.nanoTime() : 0;
+        Listing listing = new Listing();
+        IndexFile.Names seen = new IndexFile.Names();
+        Map<String, BinaryIndex> binaryIndices = transitive ? Map.of() : binaryIndices(cl);
+        Set<String> covered = covered(cl);
+        List<CompletableFuture<Listing>> reads = new ArrayList<>();
+
+        for (String prefix : transitive ? List.of(TRANSITIVE_PREFIX) : PREFIXES) {
+            final Enumeration<URL> res = cl.getResources(prefix + annotationName);
+            while (res.hasMoreElements()) {
+                URL url = res.nextElement();
+                String root = root(url, prefix + annotationName);
+                if (isCovered(root, covered)) {
+                    continue;
+                }
+
+                BinaryIndex b = binaryIndices.get(root);
+                if (executor == null) {
+                    readResource(url, annotationName, root, b, listing, seen);
+                    continue;
+                }
+                reads.add(CompletableFuture.supplyAsync(() -> {
+                    Listing l = new Listing();
+                    try {
+                        readResource(url, annotationName, root, b, l, new IndexFile.Names());
+                    } catch (IOException x) {
+                        throw new UncheckedIOException(x);
+                    }
+                    return l;
+                }, executor));
+            }
+        }
+        for (CompletableFuture<Listing> read : reads) {
+            listing.addAll(join(read));
+        }
+
+        listing.compact();
+        if (listener != null) {
+            listener.listed(annotationName, listing.size(), System.nanoTime() - start);
+        }
+        return listing;
+    }
+
+    /**
+     * Reads the uses of an annotation recorded in one root from the index file found in it,
+     * along with the members recorded for them by the binary index of the root, if any.
+     * The index file is what tells which uses there are,
+     * as merging jar files, as when shading, keeps all the index files but a single binary index.
+     */
+    private static void readResource(URL url, String annotationName, String root, BinaryIndex b, Listing listing, IndexFile.Names seen) throws IOException {
+        Listing names = b != null ? new Listing() : listing;
+        long bytes;
+        Path file = toPath(url);
+        if (file != null) {
+            bytes = IndexFile.read(file, names, b != null ? new IndexFile.Names() : seen);
+        } else {
+            try (InputStream is = url.openStream()) {
+                bytes = readIndex(is, names);
+            }
+        }
+        if (b != null) {
+            listing.addAll(names, b.getListing(annotationName));
+        }
+        IndexListener listener = Index.listener;
+        if (listener != null) {
+            listener.resourceRead(annotationName, root, bytes);
+        }
+    }
+
+    /**
+     * Binary indices visible to the class loader, keyed by the {@linkplain #root(URL, String) root} they were found in.
+     *
+     * <p>
+     * These are read once per class loader regardless of {@linkplain #setCaching(boolean) caching},
+     * as they are only consulted for index files that have been found in the same root,
+     * except that all of them are read again as soon as one found in a directory changes or goes,
+     * as when recompiling it in place.
+     */
+    private static Map<String, BinaryIndex> binaryIndices(ClassLoader cl) throws IOException {
+        LoaderCache cache = LoaderCache.of(cl);
+        LoaderCache.Stamped<Map<String, BinaryIndex>> indices = cache.getBinaryIndices();
+        if (indices == null || !indices.isCurrent()) {
+            Map<String, BinaryIndex> read = new HashMap<>();
+            Map<Path, FileTime> stamps = new HashMap<>();
+            final Enumeration<URL> res = cl.getResources(BinaryIndex.RESOURCE);
             while (res.hasMoreElements()) {
                 URL url = res.nextElement();
+                String root = root(url, BinaryIndex.RESOURCE);
+                stamp(url, stamps);
+                try (CountingInputStream is = new CountingInputStream(url.openStream())) {
+                    read.put(root, BinaryIndex.read(is));
+                    IndexListener listener = Index.listener;
+                    if (listener != null) {
+                        listener.resourceRead(null, root, is.count);
+                    }
+                } catch (IOException | RuntimeException x) {
+                    LOGGER.log(Level.WARNING, "Failed to read " + url + ", falling back to individual index files", x);
+                }
+            }
+            cache.setBinaryIndices(indices = new LoaderCache.Stamped<>(read, stamps));
+        }
+        return indices.value;
+    }
 
-                try (InputStream is = url.openStream();
-                     BufferedReader r = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8))) {
+    /**
+     * Paths of the jar files and directories whose indices have been merged by an {@link IndexAggregator}
+     * into another one visible to the class loader, as resolved against the directory that one is in.
+     * Read once per class loader, like {@link #binaryIndices(ClassLoader)}.
+     */
+    private static Set<String> covered(ClassLoader cl) throws IOException {
+        LoaderCache cache = LoaderCache.of(cl);
+        LoaderCache.Stamped<Set<String>> covered = cache.getCovered();
+        if (covered == null || !covered.isCurrent()) {
+            Set<String> read = new HashSet<>();
+            Map<Path, FileTime> stamps = new HashMap<>();
+            final Enumeration<URL> res = cl.getResources(IndexAggregator.COVERED);
+            while (res.hasMoreElements()) {
+                URL url = res.nextElement();
+                Path aggregate = rootPath(root(url, IndexAggregator.COVERED));
+                if (aggregate == null || aggregate.getParent() == null) {
+                    // cannot tell which inputs it stands for, so read them all
+                    continue;
+                }
+                stamp(url, stamps);
+                try (InputStream is = url.openStream()) {
+                    BufferedReader r = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
                     String line;
                     while ((line = r.readLine()) != null) {
-                        ids.add(line);
+                        if (!line.isEmpty()) {
+                            read.add(aggregate.getParent().resolve(line).normalize().toString());
+                        }
+                    }
+                }
+            }
+            cache.setCovered(covered = new LoaderCache.Stamped<>(read, stamps));
+        }
+        return covered.value;
+    }
+
+    /**
+     * Records the modification time of a resource about to be read, if found in a directory.
+     */
+    private static void stamp(URL url, Map<Path, FileTime> stamps) {
+        Path file = toPath(url);
+        if (file != null) {
+            stamps.put(file, LoaderCache.Stamped.lastModified(file));
+        }
+    }
+
+    /**
+     * Whether the given {@linkplain #root(URL, String) root} is one of those {@linkplain #covered(ClassLoader) covered} by an aggregated index.
+     */
+    private static boolean isCovered(String root, Set<String> covered) {
+        if (covered.isEmpty()) {
+            return false;
+        }
+        Path path = rootPath(root);
+        return path != null && covered.contains(path.toString());
+    }
+
+    /**
+     * Determines the jar file or directory of the file system that a {@linkplain #root(URL, String) root} stands for.
+     *
+     * @return
+     *      absolute and normalized path, or null for other roots.
+     */
+    static Path rootPath(String root) {
+        String s = root.startsWith("jar:") && root.endsWith("!/") ? root.substring("jar:".length(), root.length() - "!/".length()) : root;
+        if (!s.startsWith("file:")) {
+            return null;
+        }
+        try {
+            return Paths.get(new URI(s)).toAbsolutePath().normalize();
+        } catch (URISyntaxException | IllegalArgumentException | FileSystemNotFoundException x) {
+            return null;
+        }
+    }
+
+    /**
+     * Given the URL of a resource, determines the URL of the jar file or directory it was found in.
+     */
+    private static String root(URL url, String resource) {
+        String s = url.toString();
+        return s.endsWith(resource) ? s.substring(0, s.length() - resource.length()) : s;
+    }
+
+    /**
+     * Determines the file of a {@code file:} URL, so that it can be read by {@link IndexFile}.
+     *
+     * @return
+     *      null for other URLs, which are read as streams.
+     */
+    private static Path toPath(URL url) {
+        if (!url.getProtocol().equals("file")) {
+            return null;
+        }
+        try {
+            return Paths.get(url.toURI());
+        } catch (URISyntaxException | IllegalArgumentException | FileSystemNotFoundException x) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads an index file, whose entries do not record annotated members.
+     * {@linkplain IndexFile#FRONT_CODED_HEADER Front-coded} ones are handed to {@link IndexFile#read(ByteBuffer, Listing, IndexFile.Names)}.
+     *
+     * @return the number of bytes read
+     */
+    static long readIndex(InputStream is, Listing listing) throws IOException {
+        CountingInputStream in = new CountingInputStream(is);
+        BufferedInputStream b = new BufferedInputStream(in);
+        b.mark(1);
+        int first = b.read();
+        b.reset();
+        if (first == IndexFile.FRONT_CODED_HEADER.charAt(0)) {
+            IndexFile.read(ByteBuffer.wrap(b.readAllBytes()), listing, new IndexFile.Names());
+            return in.count;
+        }
+        BufferedReader r = new BufferedReader(new InputStreamReader(b, StandardCharsets.UTF_8));
+        String line;
+        while ((line = r.readLine()) != null) {
+            listing.add(line, null);
+        }
+        return in.count;
+    }
+
+    /**
+     * Keeps track of the number of bytes read, for {@link IndexListener#resourceRead(String, String, long)}.
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+    }
+
+    /**
+     * Lists the names of classes annotated by each of the given annotations.
+     * Equivalent to calling {@link #listClassNames(Class, ClassLoader)} for each annotation,
+     * but enumerates the index directories of the class loader only once for all of them,
+     * and then reads the index files of each jar file or directory straight out of it.
+     *
+     * <p>
+     * The returned sets are sorted, and copies the caller is free to modify.
+     * Jar files lacking entries for their directories, whose index directories the class loader does not return,
+     * are found on the class path of {@link java.net.URLClassLoader}s and the application class loader,
+     * or else among the jar files with a manifest; either way along with those the manifests add to the class path.
+     * The entries of each jar file are listed once per class loader, and its index files then read through {@code jar:} URLs,
+     * as the class loader reads its resources, so that jar files are not opened again on each call.
+     * Should the class loader return index directories that cannot be listed,
+     * this falls back to looking up the annotations one by one.
+     *
+     * @return
+     *      Map from the FQCN of each annotation to the names of classes annotated by it.
+     */
+    public static Map<String, Set<String>> listClassNames(Collection<Class<? extends Annotation>> types, ClassLoader cl) throws IOException {
+        IndexListener listener = Index.listener;
+        long start = listener != null ? System.nanoTime() : 0;
+        Map<String, Listing> result = new LinkedHashMap<>();
+        Map<String, Listing> read = new HashMap<>();
+        LoaderCache cache = caching ? LoaderCache.of(cl) : null;
+        for (Class<? extends Annotation> type : types) {
+            Listing listing = cache != null ? cache.getListing(type.getName()) : null;
+            if (listing == null && cache != null && !isIndexed(type.getName(), cl)) {
+                cache.putListing(type.getName(), listing = Listing.EMPTY);
+            }
+            if (listing == null) {
+                read.put(type.getName(), listing = new Listing());
+            }
+            result.put(type.getName(), listing);
+        }
+
+        // read one by one if the directories cannot be listed, which reports to the listener already
+        boolean bulk = read.isEmpty() || readListings(read, false, cl);
+        if (!bulk) {
+            for (String name : read.keySet()) {
+                Listing listing = readListing(name, cl, false, null);
+                read.put(name, listing);
+                result.put(name, listing);
+            }
+        }
+
+        Map<String, Set<String>> names = new LinkedHashMap<>();
+        for (Map.Entry<String, Listing> e : result.entrySet()) {
+            if (read.containsKey(e.getKey())) {
+                e.getValue().compact();
+                if (cache != null) {
+                    cache.putListing(e.getKey(), e.getValue());
+                }
+                if (listener != null && bulk) {
+                    listener.listed(e.getKey(), e.getValue().size(), System.nanoTime() - start);
+                }
+            }
+            names.put(e.getKey(), new TreeSet<>(e.getValue().getNames()));
+        }
+        return names;
+    }
+
+    /**
+     * Reads the index files of all the given annotations out of the index directories visible to the class loader.
+     *
+     * @param all
+     *      Whether to read those of any other annotation as well, adding listings for them,
+     *      and to go on with other directories after one that could not be listed.
+     * @return
+     *      false if some index directory could not be listed, in which case some index files may have been missed.
+     */
+    private static boolean readListings(Map<String, Listing> listings, boolean all, ClassLoader cl) throws IOException {
+        LoaderCache cache = LoaderCache.of(cl);
+        Map<String, BinaryIndex> binaryIndices = binaryIndices(cl);
+        Set<String> covered = covered(cl);
+        Map<String, IndexFile.Names> seen = new HashMap<>();
+        return scanDirectories(cl, cache, all, (dir, root, prefix) -> readDirectory(dir, root, prefix, listings, all, binaryIndices, covered, seen, cache));
+    }
+
+    /**
+     * Goes through the index directories visible to the class loader, those of each of {@link #PREFIXES} in turn:
+     * those of the {@linkplain IndexDirectory#classPathRoots class path} where it can be told, without looking up any resource,
+     * or else those returned by {@link ClassLoader#getResources(String)},
+     * followed by those of the {@linkplain IndexDirectory#jarRoots jar files} it does not return.
+     *
+     * @param all
+     *      Whether to go on with other directories after one that could not be listed.
+     * @return
+     *      false if some index directory could not be listed.
+     */
+    private static boolean scanDirectories(ClassLoader cl, LoaderCache cache, boolean all, DirectoryVisitor visitor) throws IOException {
+        List<String> roots = IndexDirectory.classPathRoots(cl, cache);
+        Set<String> jars = roots == null ? IndexDirectory.jarRoots(cl, cache) : null;
+        boolean listed = true;
+        for (String prefix : PREFIXES) {
+            if (roots != null) {
+                for (String root : roots) {
+                    visitor.visit(null, root, prefix);
+                }
+                continue;
+            }
+            Set<String> found = new HashSet<>();
+            final Enumeration<URL> res = cl.getResources(prefix);
+            while (res.hasMoreElements()) {
+                URL dir = res.nextElement();
+                String root = root(dir, prefix);
+                found.add(root);
+                if (!visitor.visit(dir, root, prefix)) {
+                    if (!all) {
+                        return false;
                     }
+                    listed = false;
+                }
+            }
+            for (String root : jars) {
+                if (!found.contains(root)) {
+                    visitor.visit(null, root, prefix);
                 }
             }
         }
+        return listed;
+    }
 
-        return ids;
+    /**
+     * Receives the index directories gone through by {@link #scanDirectories}.
+     */
+    private interface DirectoryVisitor {
+        /**
+         * @param dir
+         *      URL of the index directory as returned by the class loader,
+         *      or null to {@linkplain IndexDirectory#scanRoot scan} the jar file or directory of the given root for it.
+         * @return
+         *      false if the directory could not be listed.
+         */
+        boolean visit(URL dir, String root, String prefix) throws IOException;
+    }
+
+    /**
+     * Reads the index files of the given annotations, or all of them, out of one index directory.
+     *
+     * @param dir
+     *      URL of the index directory, or null to {@linkplain IndexDirectory#scanRoot scan} the jar file or directory of the given root for it.
+     * @return
+     *      false if the directory could not be listed.
+     */
+    private static boolean readDirectory(URL dir, String root, String prefix, Map<String, Listing> listings, boolean all,
+            Map<String, BinaryIndex> binaryIndices, Set<String> covered, Map<String, IndexFile.Names> seen, LoaderCache cache) throws IOException {
+        if (isCovered(root, covered)) {
+            return true;
+        }
+        // as readResource does
+        BinaryIndex b = binaryIndices.get(root);
+        Map<String, Listing> read = b != null ? new HashMap<>() : listings;
+        Map<String, IndexFile.Names> readSeen = b != null ? new HashMap<>() : seen;
+        IndexDirectory.Visitor visitor = new IndexDirectory.Visitor() {
+            @Override
+            public void visit(String annotationName, InputStream in) throws IOException {
+                read(annotationName, readIndex(in, read.computeIfAbsent(annotationName, k -> new Listing())));
+            }
+
+            @Override
+            public void visit(String annotationName, Path file) throws IOException {
+                read(annotationName, IndexFile.read(file, read.computeIfAbsent(annotationName, k -> new Listing()), readSeen.computeIfAbsent(annotationName, k -> new IndexFile.Names())));
+            }
+
+            private void read(String annotationName, long bytes) {
+                IndexListener listener = Index.listener;
+                if (listener != null) {
+                    listener.resourceRead(annotationName, root, bytes);
+                }
+            }
+        };
+        Collection<String> names = all ? null : listings.keySet();
+        if (dir == null) {
+            IndexDirectory.scanRoot(root, prefix, names, visitor, cache);
+        } else if (!IndexDirectory.scan(dir, prefix, names, visitor, cache)) {
+            return false;
+        }
+        if (b != null) {
+            for (Map.Entry<String, Listing> e : read.entrySet()) {
+                listings.computeIfAbsent(e.getKey(), k -> new Listing()).addAll(e.getValue(), b.getListing(e.getKey()));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Lists the indexed annotations carried by the given class or its members, or by the given package,
+     * as far as the index files visible to the class loader tell, without loading anything.
+     *
+     * <p>
+     * On first use, this reads all the index files visible to the class loader once
+     * to build a map from the names they list to the annotations listing them,
+     * which is then kept regardless of {@linkplain #setCaching(boolean) caching}
+     * until the class loader is {@linkplain #invalidate(ClassLoader) invalidated}; further lookups are a single hash lookup.
+     * Jar files lacking entries for their directories, whose index directories the class loader does not return,
+     * are found as by {@link #listClassNames(Collection, ClassLoader)};
+     * the annotations indexed in any index directory that cannot be listed are missed.
+     *
+     * @param name
+     *      Binary name of a class, such as {@code some.pkg.Outer$Inner}, or package name followed by {@code .*}.
+     * @return
+     *      sorted and unmodifiable set of annotation FQCNs, empty if the name is not listed anywhere.
+     */
+    public static Set<String> listAnnotationNames(String name, ClassLoader cl) throws IOException {
+        LoaderCache cache = LoaderCache.of(cl);
+        Map<String, Set<String>> byName = cache.getAnnotationsByName();
+        if (byName == null) {
+            Map<String, Listing> listings = new TreeMap<>();
+            if (!readListings(listings, true, cl)) {
+                LOGGER.log(Level.FINE, "Some index directories of {0} cannot be listed or found, so their annotations are not looked up by name", cl);
+            }
+            Map<String, Set<String>> sets = new HashMap<>();
+            for (Map.Entry<String, Listing> e : listings.entrySet()) {
+                Listing l = e.getValue().compact();
+                for (int i = 0; i < l.size(); i++) {
+                    // annotations are visited in order, so these come out sorted
+                    sets.computeIfAbsent(l.getName(i), k -> new LinkedHashSet<>()).add(e.getKey());
+                }
+            }
+            byName = new HashMap<>(sets.size() * 4 / 3 + 1);
+            for (Map.Entry<String, Set<String>> e : sets.entrySet()) {
+                byName.put(e.getKey(), Collections.unmodifiableSet(e.getValue()));
+            }
+            cache.setAnnotationsByName(byName);
+        }
+        return byName.getOrDefault(name, Collections.emptySet());
     }
 
     /**
      * Lists up all the elements annotated by the given annotation.
+     *
+     * <p>
+     * Where the index records which members carry the annotation, only those are looked up;
+     * otherwise all the declared members of each listed class are inspected.
      */
     public static Iterable<AnnotatedElement> list(final Class<? extends Annotation> type, final ClassLoader cl) throws IOException {
-        Set<String> ids = listClassNames(type, cl);
+        return list(type, cl, Resolver.ALL);
+    }
+
+    /**
+     * Lists up all the elements that carry the given annotation, directly or not.
+     * Besides those {@linkplain #list(Class, ClassLoader) annotated by it},
+     * these are the elements annotated with annotations meta-annotated with it, at any depth,
+     * and the classes inheriting any of those annotations from a superclass, if {@link java.lang.annotation.Inherited}.
+     *
+     * <p>
+     * Indirect uses are only found where compiled with {@code -Aannotation_indexer.transitive=true} (see {@link AnnotationProcessorImpl}),
+     * which works them out at compile time, so that no type hierarchy needs to be walked here.
+     * Meta-annotations need to be retained at runtime as well.
+     */
+    public static Iterable<AnnotatedElement> listTransitive(Class<? extends Annotation> type, ClassLoader cl) throws IOException {
+        return list(type, cl, transitiveListing(type.getName(), cl), Resolver.ALL, true);
+    }
+
+    /**
+     * Lists the names of classes that carry the given annotation, directly or not,
+     * as {@link #listTransitive(Class, ClassLoader)} would look them up.
+     *
+     * <p>
+     * The returned set is sorted, and a copy the caller is free to modify.
+     */
+    public static Set<String> listTransitiveClassNames(Class<? extends Annotation> type, ClassLoader cl) throws IOException {
+        return new TreeSet<>(transitiveListing(type.getName(), cl).getNames());
+    }
+
+    /**
+     * Lists the direct and indirect uses of the given annotation, going through the cache if enabled.
+     */
+    private static Listing transitiveListing(String annotationName, ClassLoader cl) throws IOException {
+        LoaderCache cache = caching ? LoaderCache.of(cl) : null;
+        String key = TRANSITIVE_PREFIX + annotationName;
+        Listing listing = cache != null ? cache.getListing(key) : null;
+        if (listing == null) {
+            listing = new Listing();
+            listing.addAll(listing(annotationName, cl));
+            // where an entry is in both, its members as recorded for direct uses are then ignored
+            listing.addAll(readListing(annotationName, cl, true, null));
+            listing.compact();
+            if (cache != null) {
+                cache.putListing(key, listing);
+            }
+        }
+        return listing;
+    }
+
+    /**
+     * Lists up all the elements annotated by the given annotation, like {@link #list(Class, ClassLoader)},
+     * but resolving them only once for all callers.
+     *
+     * <p>
+     * Threads asking for the same annotation and class loader at the same time wait for one of them to look it up,
+     * and those coming later get the same unmodifiable list without any locking,
+     * until the class loader is {@linkplain #invalidate(ClassLoader) invalidated}.
+     * This holds on to the elements, and thus to the class loader and all it loaded, regardless of {@linkplain #setCaching(boolean) caching};
+     * at best until the heap runs low, which running out of metaspace does not count as.
+     * So callers that discard class loaders, such as to unload plugins, must invalidate each of them as they do,
+     * for it to be garbage collected.
+     */
+    public static List<AnnotatedElement> listShared(Class<? extends Annotation> type, ClassLoader cl) throws IOException {
+        return LoaderCache.of(cl).getResolved(type.getName(), () -> {
+            List<AnnotatedElement> elements = new ArrayList<>();
+            for (AnnotatedElement e : list(type, cl)) {
+                elements.add(e);
+            }
+            return Collections.unmodifiableList(elements);
+        });
+    }
+
+    /**
+     * Lists up the elements annotated by the given annotation, resolving only those of the given kinds.
+     *
+     * @param kinds
+     *      {@link Resolver} bits, which must only select instances of {@code T}.
+     */
+    private static <T extends AnnotatedElement> Iterable<T> list(final Class<? extends Annotation> type, final ClassLoader cl, final int kinds) throws IOException {
+        return list(type, cl, listing(type.getName(), cl), kinds, false);
+    }
+
+    /**
+     * Lists up the elements of the given listing, resolving only those of the given kinds.
+     *
+     * @param transitive
+     *      Whether elements carrying the annotation indirectly count.
+     */
+    private static <T extends AnnotatedElement> Iterable<T> list(final Class<? extends Annotation> type, final ClassLoader cl, final Listing listing, final int kinds, final boolean transitive) {
         return new Iterable<>() {
             @Override
-            public Iterator<AnnotatedElement> iterator() {
+            public Iterator<T> iterator() {
                 return new Iterator<>() {
                     /**
-                     * Next element to return.
+                     * Next entry of the listing to resolve.
                      */
-                    private AnnotatedElement next;
+                    private int entry;
 
-                    private final Iterator<String> iditr = ids.iterator();
+                    /**
+                     * Elements resolved from the last entry, of which those from {@link #head} on are yet to be returned.
+                     */
+                    private final List<AnnotatedElement> lookaheads = new ArrayList<>();
 
-                    private final List<AnnotatedElement> lookaheads = new LinkedList<>();
+                    private int head;
 
                     @Override
                     public boolean hasNext() {
                         fetch();
-                        return next!=null;
+                        return head < lookaheads.size();
                     }
 
                     @Override
-                    public AnnotatedElement next() {
+                    @SuppressWarnings("unchecked")
+                    public T next() {
                         fetch();
-                        AnnotatedElement r = next;
-                        next = null;
-                        return r;
+                        if (head == lookaheads.size())  throw new NoSuchElementException();
+                        return (T) lookaheads.get(head++);
                     }
 
                     @Override
@@ -111,46 +909,200 @@ public class Index {
                     }
 
                     private void fetch() {
-                        while (next==null) {
-                            if (!lookaheads.isEmpty()) {
-                                next = lookaheads.remove(0);
-                                return;
-                            }
-
-                            if (!iditr.hasNext())   return;
-                            String name = iditr.next();
-
-                            try {
-                                if (name.endsWith(".*")) {
-                                    final Package p = Package.getPackage(name.substring(0, name.length() - 2));
-                                    lookaheads.add(p);
-                                }
-
-                                Class<?> c = cl.loadClass(name);
-
-                                if (c.isAnnotationPresent(type))
-                                    lookaheads.add(c);
-                                listAnnotatedElements(c.getDeclaredMethods());
-                                listAnnotatedElements(c.getDeclaredFields());
-                                listAnnotatedElements(c.getDeclaredConstructors());
-                            } catch (ClassNotFoundException | NoClassDefFoundError x) {
-                                LOGGER.log(Level.FINE, "Failed to load: " + name, x);
-                            } catch (LinkageError | RuntimeException x) {
-                                LOGGER.log(Level.WARNING, "Failed to load " + name, x);
-                            }
+                        while (head == lookaheads.size()) {
+                            if (entry == listing.size())   return;
+                            lookaheads.clear();
+                            head = 0;
+                            Resolver.resolve(type, cl, listing.getName(entry), listing.getMembers(entry), kinds, true, transitive, lookaheads);
+                            entry++;
                         }
                     }
+                };
+            }
+        };
+    }
+
+    /**
+     * Streams the names of classes annotated by the given annotation.
+     *
+     * <p>
+     * If {@code sorted}, this is the same as streaming {@link #listClassNames(Class, ClassLoader)}.
+     * Otherwise the names are distinct but in no particular order, and index files are read one at a time as the stream is consumed,
+     * so that short-circuiting operations such as {@link Stream#findFirst()} or {@link Stream#anyMatch} stop reading once satisfied.
+     * Failures to read an index file are then thrown as {@link UncheckedIOException}.
+     * A {@linkplain #setCaching(boolean) cached} listing is used if there is one, but lazily read ones are not cached.
+     */
+    public static Stream<String> streamClassNames(Class<? extends Annotation> type, ClassLoader cl, boolean sorted) throws IOException {
+        return listings(type.getName(), cl, sorted).flatMap(l -> l.getNames().stream());
+    }
 
-                    private void listAnnotatedElements(AnnotatedElement[] elements) {
-                        for (AnnotatedElement m : elements) {
-                            // this means we don't correctly handle
-                            if (m.isAnnotationPresent(type))
-                                lookaheads.add(m);
+    /**
+     * Streams the elements annotated by the given annotation and of the given {@link AnnotatedElement} subtype.
+     *
+     * <p>
+     * If {@code sorted}, these come in the same order as from {@link #list(Class, ClassLoader, Class)}.
+     * Otherwise index files are read lazily as with {@link #streamClassNames(Class, ClassLoader, boolean)},
+     * and a class listed in several of them is only resolved once, as the first one to list it says.
+     */
+    public static <T extends AnnotatedElement> Stream<T> stream(Class<? extends Annotation> type, ClassLoader cl, Class<T> subType, boolean sorted) throws IOException {
+        int kinds = Resolver.kindsOf(subType);
+        return listings(type.getName(), cl, sorted).flatMap(l -> IntStream.range(0, l.size()).boxed().flatMap(i -> {
+            List<AnnotatedElement> sink = new ArrayList<>();
+            Resolver.resolve(type, cl, l.getName(i), l.getMembers(i), kinds, true, sink);
+            return sink.stream().map(subType::cast);
+        }));
+    }
+
+    /**
+     * Listings whose entries together make up the uses of an annotation, each name appearing in only one of them.
+     */
+    private static Stream<Listing> listings(String annotationName, ClassLoader cl, boolean sorted) throws IOException {
+        if (sorted || caching && (LoaderCache.of(cl).getListing(annotationName) != null || !isIndexed(annotationName, cl))) {
+            return Stream.of(listing(annotationName, cl));
+        }
+        return StreamSupport.stream(new LazyListings(annotationName, cl), false);
+    }
+
+    /**
+     * Reads the index files of an annotation one at a time,
+     * yielding for each a listing of the entries not seen in earlier ones.
+     */
+    private static final class LazyListings extends Spliterators.AbstractSpliterator<Listing> {
+        private final String annotationName;
+        private final ClassLoader cl;
+        private final Map<String, BinaryIndex> binaryIndices;
+        private final Set<String> covered;
+        private final Iterator<String> prefixes = PREFIXES.iterator();
+        private String resource;
+        private Enumeration<URL> res = Collections.emptyEnumeration();
+        private final Set<String> seen = new HashSet<>();
+
+        LazyListings(String annotationName, ClassLoader cl) throws IOException {
+            super(Long.MAX_VALUE, Spliterator.NONNULL);
+            this.annotationName = annotationName;
+            this.cl = cl;
+            this.binaryIndices = binaryIndices(cl);
+            this.covered = covered(cl);
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Listing> action) {
+            try {
+                while (true) {
+                    while (!res.hasMoreElements()) {
+                        if (!prefixes.hasNext()) {
+                            return false;
                         }
+                        resource = prefixes.next() + annotationName;
+                        res = cl.getResources(resource);
                     }
-                };
+                    URL url = res.nextElement();
+                    String root = root(url, resource);
+                    if (isCovered(root, covered)) {
+                        continue;
+                    }
+                    Listing read = new Listing();
+                    readResource(url, annotationName, root, binaryIndices.get(root), read, new IndexFile.Names());
+                    Listing fresh = new Listing();
+                    for (int i = 0; i < read.size(); i++) {
+                        if (seen.add(read.getName(i))) {
+                            fresh.add(read.getName(i), read.getMembers(i));
+                        }
+                    }
+                    if (fresh.size() > 0) {
+                        action.accept(fresh);
+                        return true;
+                    }
+                }
+            } catch (IOException x) {
+                throw new UncheckedIOException(x);
+            }
+        }
+    }
+
+    /**
+     * Lists the elements annotated by the given annotation without loading any class,
+     * so that the caller can pick which ones to {@linkplain IndexedElement#resolve() resolve}.
+     *
+     * <p>
+     * Where the index records which members carry the annotation, there is one element per member;
+     * otherwise there is one element per listed class, whose {@linkplain IndexedElement#getKind() kind} is unknown.
+     */
+    public static List<IndexedElement> listElements(Class<? extends Annotation> type, ClassLoader cl) throws IOException {
+        List<IndexedElement> elements = new ArrayList<>();
+        Listing listing = listing(type.getName(), cl);
+        for (int i = 0; i < listing.size(); i++) {
+            String name = listing.getName(i);
+            String[] members = listing.getMembers(i);
+            if (members == null) {
+                elements.add(new IndexedElement(type, cl, name, null, Collections.emptyMap()));
+            } else {
+                for (String member : members) {
+                    elements.add(new IndexedElement(type, cl, name, member, listing.getAttributes(name, member)));
+                }
+            }
+        }
+        return elements;
+    }
+
+    /**
+     * Lists up all the elements annotated by the given annotation, like {@link #list(Class, ClassLoader)},
+     * but loading and inspecting the listed classes concurrently.
+     *
+     * <p>
+     * At most as many tasks as there are available processors are used,
+     * one of which runs in the calling thread while the others are submitted to the given executor.
+     * The result is in the same order as {@link #list(Class, ClassLoader)}, regardless of the order classes were loaded in.
+     */
+    public static List<AnnotatedElement> listParallel(Class<? extends Annotation> type, ClassLoader cl, Executor executor) throws IOException {
+        Listing listing = listing(type.getName(), cl);
+        int n = listing.size();
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        List<AnnotatedElement>[] resolved = new List[n];
+        AtomicInteger next = new AtomicInteger();
+        Runnable worker = () -> {
+            int j;
+            while ((j = next.getAndIncrement()) < n) {
+                List<AnnotatedElement> sink = new ArrayList<>();
+                Resolver.resolve(type, cl, listing.getName(j), listing.getMembers(j), sink);
+                resolved[j] = sink;
             }
         };
+        int workers = Math.min(n, Runtime.getRuntime().availableProcessors());
+        CompletableFuture<?>[] tasks = new CompletableFuture<?>[Math.max(workers - 1, 0)];
+        for (int t = 0; t < tasks.length; t++) {
+            tasks[t] = CompletableFuture.runAsync(worker, executor);
+        }
+        worker.run();
+        join(CompletableFuture.allOf(tasks));
+
+        List<AnnotatedElement> result = new ArrayList<>();
+        for (List<AnnotatedElement> r : resolved) {
+            result.addAll(r);
+        }
+        return result;
+    }
+
+    /**
+     * Waits for a task, rethrowing what it failed with.
+     */
+    private static <T> T join(CompletableFuture<T> task) throws IOException {
+        try {
+            return task.join();
+        } catch (CompletionException x) {
+            Throwable cause = x.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw x;
+        }
     }
 
     private Index() {}
@@ -0,0 +1,235 @@
+package org.jvnet.hudson.annotation_indexer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+
+/**
+ * Merges the indices of a set of jar files or class directories into one when packaging an application,
+ * so that {@link Index} does not have to read them one by one on every start.
+ *
+ * <p>
+ * The output is a jar file or directory to be put on the same class path as the inputs, which contains
+ * the merged and sorted index file of each annotation, and of its indirect uses if the inputs record them,
+ * optionally a merged binary index (see {@link AnnotationProcessorImpl}) recording the annotated members as far as the inputs did,
+ * and the list of the inputs, by their paths relative to the directory the output is in.
+ * {@link Index} then skips the index files of the jar files and directories at those paths,
+ * so the output has to be regenerated whenever any of them changes,
+ * and moved only together with them.
+ *
+ * <p>
+ * From the command line:
+ * <pre>
+ * java -cp annotation-indexer.jar org.jvnet.hudson.annotation_indexer.IndexAggregator [--binary] OUTPUT INPUT...
+ * </pre>
+ * where {@code OUTPUT} is a jar file if its name ends with {@code .jar}, or else a directory.
+ */
+public final class IndexAggregator {
+    /**
+     * Resource listing the jar files and directories whose indices have been merged,
+     * one per line, by their paths relative to the directory the jar file or directory with the resource is in,
+     * with {@code /} as separator.
+     */
+    static final String COVERED = "META-INF/annotations-aggregate.list";
+
+    /**
+     * Directories of index files read from the inputs.
+     */
+    private static final List<String> PREFIXES = List.of(Index.PREFIXES.get(0), Index.PREFIXES.get(1), Index.TRANSITIVE_PREFIX);
+
+    private final BinaryIndex merged = new BinaryIndex();
+    /**
+     * Indirect uses of each annotation, keyed by its FQCN.
+     *
+     * @see Index#listTransitive(Class, ClassLoader)
+     */
+    private final Map<String, Listing> transitive = new TreeMap<>();
+    /**
+     * Absolute paths of the inputs.
+     */
+    private final Set<Path> covered = new TreeSet<>();
+
+    /**
+     * Adds the indices of a jar file or class directory.
+     *
+     * @return this
+     */
+    public IndexAggregator add(Path input) throws IOException {
+        Map<String, Listing> listings = new TreeMap<>();
+        Map<String, IndexFile.Names> seen = new TreeMap<>();
+        BinaryIndex binary = null;
+        if (Files.isDirectory(input)) {
+            for (String prefix : PREFIXES) {
+                Path dir = input.resolve(prefix);
+                if (!Files.isDirectory(dir)) {
+                    continue;
+                }
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                    for (Path f : files) {
+                        if (Files.isRegularFile(f)) {
+                            String name = f.getFileName().toString();
+                            IndexFile.read(f, listing(listings, prefix, name), names(seen, prefix, name));
+                        }
+                    }
+                }
+            }
+            Path idx = input.resolve(BinaryIndex.RESOURCE);
+            if (Files.isRegularFile(idx)) {
+                try (InputStream is = Files.newInputStream(idx)) {
+                    binary = BinaryIndex.read(is);
+                }
+            }
+        } else {
+            try (JarFile jar = new JarFile(input.toFile())) {
+                for (Enumeration<JarEntry> e = jar.entries(); e.hasMoreElements();) {
+                    JarEntry entry = e.nextElement();
+                    String name = entry.getName();
+                    for (String prefix : PREFIXES) {
+                        if (name.length() > prefix.length() && name.startsWith(prefix) && name.indexOf('/', prefix.length()) < 0) {
+                            String annotationName = name.substring(prefix.length());
+                            try (InputStream is = jar.getInputStream(entry)) {
+                                // as for directories, so that the output does not depend on how the inputs are packaged
+                                IndexFile.read(ByteBuffer.wrap(is.readAllBytes()), listing(listings, prefix, annotationName), names(seen, prefix, annotationName));
+                            }
+                        }
+                    }
+                }
+                JarEntry idx = jar.getJarEntry(BinaryIndex.RESOURCE);
+                if (idx != null) {
+                    try (InputStream is = jar.getInputStream(idx)) {
+                        binary = BinaryIndex.read(is);
+                    }
+                }
+            }
+        }
+
+        for (Map.Entry<String, Listing> e : listings.entrySet()) {
+            // as Index would read them
+            Listing listing = e.getValue();
+            if (binary != null) {
+                listing = new Listing();
+                listing.addAll(e.getValue(), binary.getListing(e.getKey()));
+            }
+            merged.addAll(e.getKey(), listing);
+        }
+        covered.add(input.toAbsolutePath().normalize());
+        return this;
+    }
+
+    /**
+     * Names already read from the index files of the given annotation in the given directory of an input, or in any of {@link Index#PREFIXES}.
+     */
+    private static IndexFile.Names names(Map<String, IndexFile.Names> seen, String prefix, String annotationName) {
+        return seen.computeIfAbsent(prefix.equals(Index.TRANSITIVE_PREFIX) ? prefix + annotationName : annotationName, k -> new IndexFile.Names());
+    }
+
+    /**
+     * Where to read an index file of the given directory into: the listings of the input, or the merged indirect uses.
+     */
+    private Listing listing(Map<String, Listing> listings, String prefix, String annotationName) {
+        return (prefix.equals(Index.TRANSITIVE_PREFIX) ? transitive : listings).computeIfAbsent(annotationName, k -> new Listing());
+    }
+
+    /**
+     * Writes the merged index.
+     *
+     * @param output
+     *      Jar file to create if its name ends with {@code .jar}, or else directory to write into.
+     * @param binary
+     *      Whether to also write a binary index.
+     */
+    public void write(Path output, boolean binary) throws IOException {
+        Map<String, byte[]> resources = new TreeMap<>();
+        for (String a : merged.getAnnotationNames()) {
+            StringBuilder b = new StringBuilder();
+            for (String name : merged.getListing(a).getNames()) {
+                b.append(name).append('\n');
+            }
+            resources.put(Index.PREFIXES.get(1) + a, b.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        for (Map.Entry<String, Listing> e : transitive.entrySet()) {
+            StringBuilder b = new StringBuilder();
+            for (String name : e.getValue().getNames()) {
+                b.append(name).append('\n');
+            }
+            resources.put(Index.TRANSITIVE_PREFIX + e.getKey(), b.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        if (binary) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            merged.write(baos);
+            resources.put(BinaryIndex.RESOURCE, baos.toByteArray());
+        }
+        Path base = output.toAbsolutePath().normalize().getParent();
+        StringBuilder list = new StringBuilder();
+        for (Path input : covered) {
+            String relative;
+            try {
+                relative = base.relativize(input).toString();
+            } catch (IllegalArgumentException x) {
+                throw new IOException(input + " is not on the same file system root as " + output, x);
+            }
+            list.append(relative.replace(input.getFileSystem().getSeparator(), "/")).append('\n');
+        }
+        resources.put(COVERED, list.toString().getBytes(StandardCharsets.UTF_8));
+
+        if (output.getFileName().toString().endsWith(".jar")) {
+            Set<String> dirs = new TreeSet<>();
+            try (JarOutputStream jos = new JarOutputStream(Files.newOutputStream(output))) {
+                for (Map.Entry<String, byte[]> r : resources.entrySet()) {
+                    // with entries for the directories, as Index expects
+                    for (int i = r.getKey().indexOf('/'); i > 0; i = r.getKey().indexOf('/', i + 1)) {
+                        String dir = r.getKey().substring(0, i + 1);
+                        if (dirs.add(dir)) {
+                            jos.putNextEntry(new JarEntry(dir));
+                        }
+                    }
+                    jos.putNextEntry(new JarEntry(r.getKey()));
+                    jos.write(r.getValue());
+                }
+            }
+        } else {
+            for (Map.Entry<String, byte[]> r : resources.entrySet()) {
+                Path f = output.resolve(r.getKey());
+                Files.createDirectories(f.getParent());
+                try (OutputStream os = Files.newOutputStream(f)) {
+                    os.write(r.getValue());
+                }
+            }
+        }
+    }
+
+    public static void main(String... args) throws IOException {
+        int i = 0;
+        boolean binary = false;
+        if (args.length > 0 && args[0].equals("--binary")) {
+            binary = true;
+            i++;
+        }
+        if (args.length - i < 2) {
+            System.err.println("Usage: java " + IndexAggregator.class.getName() + " [--binary] OUTPUT INPUT...");
+            System.exit(2);
+        }
+        Path output = Paths.get(args[i++]);
+        IndexAggregator aggregator = new IndexAggregator();
+        while (i < args.length) {
+            aggregator.add(Paths.get(args[i++]));
+        }
+        aggregator.write(output, binary);
+    }
+}
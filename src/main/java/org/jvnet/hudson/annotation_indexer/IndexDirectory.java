@@ -0,0 +1,385 @@
+package org.jvnet.hudson.annotation_indexer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.net.URLConnection;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+/**
+ * Reads the index files straight out of an index directory,
+ * such as {@code META-INF/services/annotations/} of a jar file,
+ * as returned by {@link ClassLoader#getResources(String)}.
+ *
+ * <p>
+ * This lets a single resource enumeration serve any number of annotations,
+ * where {@link ClassLoader} otherwise only lets us look up one file at a time.
+ * Where the {@linkplain #classPathRoots class path} of the class loader can be told, it is gone through instead,
+ * so that no resource needs to be looked up at all.
+ * Otherwise, jar files lacking entries for their directories do not show up in that enumeration,
+ * so it is only complete together with the {@linkplain #jarRoots jar files with a manifest}.
+ *
+ * <p>
+ * The entries of each jar file are only listed once per class loader, into a {@link Jar} kept by its {@link LoaderCache},
+ * and the index files then read through {@code jar:} URLs, as the class loader reads its resources,
+ * so that jar files are not opened again on every lookup.
+ */
+final class IndexDirectory {
+    /**
+     * Receives the index files found in a directory.
+     */
+    interface Visitor {
+        /**
+         * Tells whether to read the index file of an annotation, which is found in the directory.
+         */
+        default boolean accept(String annotationName) {
+            return true;
+        }
+
+        void visit(String annotationName, InputStream in) throws IOException;
+
+        /**
+         * Visits an index file found in a directory of the file system, by default reading it as a stream.
+         */
+        default void visit(String annotationName, Path file) throws IOException {
+            try (InputStream is = Files.newInputStream(file)) {
+                visit(annotationName, is);
+            }
+        }
+    }
+
+    /**
+     * What is needed of a jar file of the file system, read once per class loader,
+     * as a class loader does not cope with its jar files changing anyway.
+     */
+    static final class Jar {
+        /**
+         * Stands for a jar file that does not exist.
+         */
+        static final Jar NONE = new Jar(Map.of(), List.of());
+
+        /**
+         * Names of the index files directly in each of {@link Index#PREFIXES}, keyed by it.
+         */
+        final Map<String, List<String>> indexFiles;
+
+        /**
+         * Roots of the jar files its manifest adds to the class path, as {@code jar:file:...!/} URLs.
+         */
+        final List<String> classPath;
+
+        private Jar(Map<String, List<String>> indexFiles, List<String> classPath) {
+            this.indexFiles = indexFiles;
+            this.classPath = classPath;
+        }
+
+        List<String> getIndexFiles(String prefix) {
+            return indexFiles.getOrDefault(prefix, List.of());
+        }
+    }
+
+    /**
+     * Visits the index files in the given directory.
+     *
+     * @param prefix
+     *      The index directory the URL stands for.
+     * @param names
+     *      FQCNs of annotations to visit, or null to visit all of them.
+     * @param cache
+     *      That of the class loader returning the directory, if any, through which jar files of the file system are listed;
+     *      otherwise they are read through the connection of the URL.
+     * @return
+     *      false if the directory could not be listed because of its URL scheme,
+     *      in which case nothing has been visited.
+     */
+    static boolean scan(URL dir, String prefix, Collection<String> names, Visitor visitor, LoaderCache cache) throws IOException {
+        switch (dir.getProtocol()) {
+        case "file":
+            Path d;
+            try {
+                d = Paths.get(dir.toURI());
+            } catch (URISyntaxException | IllegalArgumentException x) {
+                return false;
+            }
+            scan(d, names, visitor);
+            return true;
+        case "jar":
+            String s = dir.toString();
+            if (cache != null && Index.PREFIXES.contains(prefix) && s.endsWith("!/" + prefix) && scanRoot(s.substring(0, s.length() - prefix.length()), prefix, names, visitor, cache)) {
+                return true;
+            }
+            // such as a jar file nested in another one, which the class loader reads through the same connections
+            URLConnection c = dir.openConnection();
+            if (!(c instanceof JarURLConnection)) {
+                return false;
+            }
+            JarURLConnection jc = (JarURLConnection) c;
+            JarFile jar = jc.getJarFile();
+            try {
+                for (Enumeration<JarEntry> e = jar.entries(); e.hasMoreElements();) {
+                    JarEntry entry = e.nextElement();
+                    String name = entry.getName();
+                    if (isIndexFile(name, prefix)) {
+                        visit(jar, entry, name.substring(prefix.length()), names, visitor);
+                    }
+                }
+            } finally {
+                if (!jc.getUseCaches()) {
+                    jar.close();
+                }
+            }
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    private static void scan(Path dir, Collection<String> names, Visitor visitor) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path f : files) {
+                String name = f.getFileName().toString();
+                if ((names == null || names.contains(name)) && Files.isRegularFile(f) && visitor.accept(name)) {
+                    visitor.visit(name, f);
+                }
+            }
+        }
+    }
+
+    /**
+     * Visits the index files in the given index directory of a jar file or directory of the file system, if any.
+     * Those of a jar file are found as {@linkplain #jar listed} once, so that the directory itself needs no entry.
+     *
+     * @param root
+     *      {@code jar:file:...!/} URL of the jar file or {@code file:...} one of the directory,
+     *      as returned by {@link #classPathRoots} or {@link #jarRoots}.
+     * @param prefix
+     *      One of {@link Index#PREFIXES}.
+     * @return
+     *      false if the root is not such a URL, in which case nothing has been visited.
+     */
+    static boolean scanRoot(String root, String prefix, Collection<String> names, Visitor visitor, LoaderCache cache) throws IOException {
+        if (!root.startsWith("jar:")) {
+            Path d = Index.rootPath(root);
+            if (d == null) {
+                return false;
+            }
+            d = d.resolve(prefix);
+            if (Files.isDirectory(d)) {
+                scan(d, names, visitor);
+            }
+            return true;
+        }
+        Jar jar = jar(root, cache);
+        if (jar == null) {
+            return false;
+        }
+        for (String name : jar.getIndexFiles(prefix)) {
+            if ((names == null || names.contains(name)) && visitor.accept(name)) {
+                try (InputStream is = new URL(root + prefix + name).openStream()) {
+                    visitor.visit(name, is);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Lists what is needed of the given jar file, unless already done for the class loader.
+     *
+     * @param root
+     *      {@code jar:file:...!/} URL of the jar file.
+     * @return
+     *      null if the root is not such a URL, {@link Jar#NONE} if there is no such file.
+     */
+    static Jar jar(String root, LoaderCache cache) throws IOException {
+        if (!root.startsWith("jar:file:") || !root.endsWith("!/")) {
+            return null;
+        }
+        Jar jar = cache.getJar(root);
+        if (jar != null) {
+            return jar;
+        }
+        Path file = Index.rootPath(root);
+        if (file == null) {
+            return null;
+        }
+        if (!Files.isRegularFile(file)) {
+            jar = Jar.NONE;
+        } else {
+            Map<String, List<String>> indexFiles = new HashMap<>();
+            List<String> classPath = new ArrayList<>();
+            try (JarFile jf = new JarFile(file.toFile(), false)) {
+                for (Enumeration<JarEntry> e = jf.entries(); e.hasMoreElements();) {
+                    String name = e.nextElement().getName();
+                    if (!name.startsWith("META-INF/")) {
+                        continue;
+                    }
+                    for (String prefix : Index.PREFIXES) {
+                        if (isIndexFile(name, prefix)) {
+                            indexFiles.computeIfAbsent(prefix, k -> new ArrayList<>()).add(name.substring(prefix.length()));
+                        }
+                    }
+                }
+                Manifest manifest = jf.getManifest();
+                String cp = manifest != null ? manifest.getMainAttributes().getValue(Attributes.Name.CLASS_PATH) : null;
+                if (cp != null) {
+                    URL base = file.toUri().toURL();
+                    for (String entry : cp.trim().split("\\s+")) {
+                        URL u = new URL(base, entry);
+                        if (u.getProtocol().equals("file") && !u.getPath().endsWith("/")) {
+                            classPath.add("jar:" + u + "!/");
+                        }
+                    }
+                }
+            }
+            jar = new Jar(indexFiles, classPath);
+        }
+        cache.putJar(root, jar);
+        return jar;
+    }
+
+    private static boolean isIndexFile(String entryName, String prefix) {
+        return entryName.length() > prefix.length() && entryName.startsWith(prefix) && entryName.indexOf('/', prefix.length()) < 0;
+    }
+
+    /**
+     * Lists the jar files and directories the class loader and its parents load from, in the order they are searched,
+     * as {@code jar:file:...!/} and {@code file:...} URLs,
+     * along with the jar files the manifests add to the class path.
+     *
+     * @return
+     *      null if the {@linkplain #classPath class path} cannot be told,
+     *      or if it has something else than jar files and directories of the file system.
+     */
+    static List<String> classPathRoots(ClassLoader cl, LoaderCache cache) throws IOException {
+        List<URL> urls = classPath(cl);
+        if (urls == null) {
+            return null;
+        }
+        Set<String> roots = new LinkedHashSet<>();
+        for (URL url : urls) {
+            if (!url.getProtocol().equals("file")) {
+                return null;
+            }
+            addRoot(url.getPath().endsWith("/") ? url.toString() : "jar:" + url + "!/", roots, cache);
+        }
+        return new ArrayList<>(roots);
+    }
+
+    private static void addRoot(String root, Set<String> roots, LoaderCache cache) throws IOException {
+        if (roots.add(root)) {
+            Jar jar = jar(root, cache);
+            if (jar != null) {
+                for (String r : jar.classPath) {
+                    addRoot(r, roots, cache);
+                }
+            }
+        }
+    }
+
+    /**
+     * Lists the jar files with a manifest visible to the class loader, as {@code jar:file:...!/} URLs,
+     * along with those the manifests add to the class path,
+     * for class loaders whose {@linkplain #classPath class path} cannot be told,
+     * since {@link ClassLoader#getResources(String)} does not return the index directories of those lacking entries for their directories,
+     * which are valid and not uncommon, so that they can be {@linkplain #scanRoot scanned} instead.
+     * Jar files lacking both a manifest and entries for their directories are thus missed.
+     */
+    static Set<String> jarRoots(ClassLoader cl, LoaderCache cache) throws IOException {
+        Set<String> roots = new LinkedHashSet<>();
+        Enumeration<URL> manifests = cl.getResources(JarFile.MANIFEST_NAME);
+        while (manifests.hasMoreElements()) {
+            String s = manifests.nextElement().toString();
+            if (s.startsWith("jar:file:") && s.endsWith("!/" + JarFile.MANIFEST_NAME)) {
+                roots.add(s.substring(0, s.length() - JarFile.MANIFEST_NAME.length()));
+            }
+        }
+        Deque<String> todo = new ArrayDeque<>(roots);
+        for (String root; (root = todo.poll()) != null;) {
+            Jar jar = jar(root, cache);
+            if (jar != null) {
+                for (String r : jar.classPath) {
+                    if (roots.add(r)) {
+                        todo.add(r);
+                    }
+                }
+            }
+        }
+        return roots;
+    }
+
+    /**
+     * Lists the URLs the class loader and its parents load from, parents first, as far as can be told without looking up resources.
+     *
+     * @return
+     *      null if the class path cannot be told, as for class loaders other than {@link URLClassLoader}s and the application class loader,
+     *      or {@link URLClassLoader}s that find resources some other way.
+     */
+    static List<URL> classPath(ClassLoader cl) throws IOException {
+        List<URL> urls = new ArrayList<>();
+        for (ClassLoader l = cl; l != null && l != ClassLoader.getPlatformClassLoader(); l = l.getParent()) {
+            if (l instanceof URLClassLoader && PLAIN.get(l.getClass())) {
+                urls.addAll(0, Arrays.asList(((URLClassLoader) l).getURLs()));
+            } else if (l == ClassLoader.getSystemClassLoader() && l.getClass().getName().startsWith("jdk.internal.loader.")
+                    && System.getProperty("jdk.module.path") == null) {
+                List<URL> entries = new ArrayList<>();
+                for (String entry : System.getProperty("java.class.path", "").split(File.pathSeparator)) {
+                    if (!entry.isEmpty()) {
+                        entries.add(new File(entry).getCanonicalFile().toURI().toURL());
+                    }
+                }
+                urls.addAll(0, entries);
+            } else {
+                return null;
+            }
+        }
+        return urls;
+    }
+
+    /**
+     * Whether a {@link URLClassLoader} class finds resources as {@link URLClassLoader} does, only in its URLs.
+     */
+    private static final ClassValue<Boolean> PLAIN = new ClassValue<>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            try {
+                return type.getMethod("findResources", String.class).getDeclaringClass() == URLClassLoader.class;
+            } catch (NoSuchMethodException x) {
+                return false;
+            }
+        }
+    };
+
+    private static void visit(JarFile jar, JarEntry entry, String name, Collection<String> names, Visitor visitor) throws IOException {
+        if (names != null && !names.contains(name) || !visitor.accept(name)) {
+            return;
+        }
+        try (InputStream is = jar.getInputStream(entry)) {
+            visitor.visit(name, is);
+        }
+    }
+
+    private IndexDirectory() {}
+}
@@ -0,0 +1,210 @@
+package org.jvnet.hudson.annotation_indexer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reads index files straight from the file system, such as those of exploded plugin directories.
+ *
+ * <p>
+ * Large files are memory-mapped and small ones read in one go, and either way lines are split right in the buffer.
+ * Names that have already been {@linkplain Names seen} are skipped before ever being turned into strings.
+ * Index files inside jar files are read through {@link Index#readIndex(java.io.InputStream, Listing)} instead,
+ * which comes here for {@linkplain #FRONT_CODED_HEADER front-coded} ones.
+ */
+final class IndexFile {
+    /**
+     * Size from which mapping a file is cheaper than reading it.
+     */
+    static final int MAP_THRESHOLD = 64 * 1024;
+
+    /**
+     * First line of a front-coded index file, as written with {@code -Aannotation_indexer.format=front-coded}.
+     * Each of the following lines consists of the number of leading bytes its name shares with the previous one,
+     * in decimal, a space, and the remaining bytes of the name.
+     * Names are encoded in UTF-8, and shared prefixes do not split characters.
+     */
+    static final String FRONT_CODED_HEADER = "#front-coded";
+
+    /**
+     * Adds the names listed in the given index file to the listing, unless already seen.
+     *
+     * @return the size of the file
+     */
+    static long read(Path file, Listing listing, Names seen) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(file + " is too large");
+            }
+            ByteBuffer buf;
+            if (size >= MAP_THRESHOLD) {
+                buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } else {
+                buf = ByteBuffer.allocate((int) size);
+                while (buf.hasRemaining() && ch.read(buf) >= 0) {
+                    // keep reading
+                }
+                buf.flip();
+            }
+            read(buf, listing, seen);
+            return size;
+        }
+    }
+
+    /**
+     * Adds the names of the given buffer, from its position to its limit, to the listing, unless already seen.
+     * They are one per line, unless {@linkplain #FRONT_CODED_HEADER front-coded}.
+     * Lines end with {@code \n} or {@code \r\n}, the last one possibly with neither.
+     */
+    static void read(ByteBuffer buf, Listing listing, Names seen) {
+        int end = buf.limit();
+        int start = buf.position();
+        byte[] prev = null;
+        int prevLength = 0;
+        while (start < end) {
+            int nl = start;
+            while (nl < end && buf.get(nl) != '\n') {
+                nl++;
+            }
+            int lineEnd = nl > start && buf.get(nl - 1) == '\r' ? nl - 1 : nl;
+            String name;
+            if (prev == null && start == buf.position() && isFrontCodedHeader(buf, start, lineEnd)) {
+                prev = new byte[128];
+                name = null;
+            } else if (prev == null) {
+                name = seen.add(buf, start, lineEnd);
+            } else {
+                // shared length, space, rest
+                int shared = 0;
+                int i = start;
+                while (i < lineEnd && buf.get(i) >= '0' && buf.get(i) <= '9' && shared <= prevLength) {
+                    shared = shared * 10 + buf.get(i++) - '0';
+                }
+                if (i == lineEnd || buf.get(i) != ' ' || shared > prevLength) {
+                    name = null;    // not written by us, so ignored
+                } else {
+                    int rest = lineEnd - i - 1;
+                    if (prev.length < shared + rest) {
+                        prev = Arrays.copyOf(prev, Math.max(shared + rest, prev.length * 2));
+                    }
+                    buf.get(i + 1, prev, shared, rest);
+                    prevLength = shared + rest;
+                    name = seen.add(ByteBuffer.wrap(prev), 0, prevLength);
+                }
+            }
+            if (name != null) {
+                listing.add(name, null);
+            }
+            start = nl + 1;
+        }
+    }
+
+    private static boolean isFrontCodedHeader(ByteBuffer buf, int start, int end) {
+        if (end - start != FRONT_CODED_HEADER.length()) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            if (buf.get(i) != FRONT_CODED_HEADER.charAt(i - start)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Set of names keyed by their UTF-8 encoding, so that looking one up in a buffer needs no {@link String}.
+     */
+    static final class Names {
+        private String[] names = new String[64];
+        private int[] hashes = new int[64];
+        private int size;
+        private byte[] scratch = new byte[128];
+
+        /**
+         * Adds the name encoded in the given range of the buffer.
+         *
+         * @return the name, or null if it has been added before.
+         */
+        String add(ByteBuffer buf, int start, int end) {
+            int h = 0;
+            boolean ascii = true;
+            for (int i = start; i < end; i++) {
+                byte b = buf.get(i);
+                h = 31 * h + b;
+                ascii &= b >= 0;
+            }
+            String decoded = ascii ? null : decode(buf, start, end, StandardCharsets.UTF_8);
+
+            int mask = names.length - 1;
+            int i = (h ^ (h >>> 16)) & mask;
+            for (String n; (n = names[i]) != null; i = (i + 1) & mask) {
+                if (hashes[i] == h && (ascii ? equals(n, buf, start, end) : n.equals(decoded))) {
+                    return null;
+                }
+            }
+
+            String name = ascii ? decode(buf, start, end, StandardCharsets.ISO_8859_1) : decoded;
+            names[i] = name;
+            hashes[i] = h;
+            if (++size * 2 > names.length) {
+                grow();
+            }
+            return name;
+        }
+
+        /**
+         * Compares ASCII bytes with a string, which cannot match if it has any other character.
+         */
+        private static boolean equals(String s, ByteBuffer buf, int start, int end) {
+            if (s.length() != end - start) {
+                return false;
+            }
+            for (int i = start; i < end; i++) {
+                if (s.charAt(i - start) != buf.get(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private String decode(ByteBuffer buf, int start, int end, Charset cs) {
+            int len = end - start;
+            if (buf.hasArray()) {
+                return new String(buf.array(), buf.arrayOffset() + start, len, cs);
+            }
+            if (scratch.length < len) {
+                scratch = new byte[Math.max(len, scratch.length * 2)];
+            }
+            buf.get(start, scratch, 0, len);
+            return new String(scratch, 0, len, cs);
+        }
+
+        private void grow() {
+            String[] oldNames = names;
+            int[] oldHashes = hashes;
+            names = new String[oldNames.length * 2];
+            hashes = new int[oldNames.length * 2];
+            int mask = names.length - 1;
+            for (int j = 0; j < oldNames.length; j++) {
+                if (oldNames[j] != null) {
+                    int h = oldHashes[j];
+                    int i = (h ^ (h >>> 16)) & mask;
+                    while (names[i] != null) {
+                        i = (i + 1) & mask;
+                    }
+                    names[i] = oldNames[j];
+                    hashes[i] = h;
+                }
+            }
+        }
+    }
+
+    private IndexFile() {}
+}
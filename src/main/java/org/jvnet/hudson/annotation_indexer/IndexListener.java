@@ -0,0 +1,56 @@
+package org.jvnet.hudson.annotation_indexer;
+
+/**
+ * Told about the work done by {@link Index} lookups, so that their cost can be broken down.
+ *
+ * <p>
+ * Installed with {@link Index#setListener(IndexListener)}; see {@link JfrIndexListener} for an implementation.
+ * Methods are called synchronously from whichever thread does the lookup, so they should be quick and thread-safe,
+ * and must not throw.
+ * All of them do nothing by default.
+ */
+public interface IndexListener {
+    /**
+     * An index file, or a binary index, has been read.
+     *
+     * @param annotationName
+     *      FQCN of the annotation whose index file was read, or null for a binary index.
+     * @param root
+     *      URL of the jar file or directory it was found in.
+     * @param bytes
+     *      Size of the file.
+     */
+    default void resourceRead(String annotationName, String root, long bytes) {}
+
+    /**
+     * All the index files of an annotation have been read.
+     *
+     * @param classNames
+     *      Number of distinct names found.
+     * @param nanos
+     *      Time taken to enumerate and read them, which is that of the whole lookup
+     *      when several annotations are {@linkplain Index#listClassNames(java.util.Collection, ClassLoader) looked up together}.
+     */
+    default void listed(String annotationName, int classNames, long nanos) {}
+
+    /**
+     * A listed class has been loaded.
+     */
+    default void classLoaded(String className, long nanos) {}
+
+    /**
+     * The annotated elements of a loaded class have been looked up through reflection.
+     *
+     * @param elements
+     *      Number of annotated elements found.
+     */
+    default void reflected(String className, int elements, long nanos) {}
+
+    /**
+     * A listed class could not be loaded or inspected, or its recorded members could not be found.
+     *
+     * @param name
+     *      Class name, or package name followed by {@code .*}, as listed.
+     */
+    default void failed(String name, Throwable failure) {}
+}
@@ -0,0 +1,273 @@
+package org.jvnet.hudson.annotation_indexer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.jar.JarFile;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Saves what {@link Index} has {@linkplain Index#setCaching(boolean) cached} about a class loader to a file,
+ * so that the next run of the application can start from it instead of reading the index files again.
+ *
+ * <p>
+ * The snapshot is keyed by a fingerprint of the jar files and directories the class loader loads from:
+ * the URL, size and modification time of each jar file, and of each index file, binary index and aggregated index of each directory.
+ * It is ignored as soon as any of those changes, comes or goes.
+ * Where the {@linkplain IndexDirectory#classPath class path} of the class loader can be told,
+ * this takes no resource lookup at all, nor opening any jar file;
+ * jar files only added to the class path by the manifests of others are then not part of it,
+ * and are taken to change along with those.
+ * Otherwise, the index directories, binary and aggregated indices and manifests visible to the class loader
+ * are each enumerated once, regardless of the number of annotations recorded.
+ * Typically:
+ * <pre>
+ * Index.setCaching(true);
+ * IndexSnapshot.load(cl, file);
+ * // start up, looking up annotations
+ * IndexSnapshot.save(cl, file);
+ * </pre>
+ *
+ * <p>
+ * The file consists of a {@link #MAGIC} number and {@link #VERSION}, the fingerprint,
+ * and a {@link BinaryIndex} of the cached listings, which thus also record annotated members and attribute values where known.
+ */
+public final class IndexSnapshot {
+    static final int MAGIC = 0x414e5353; // "ANSS"
+
+    static final int VERSION = 2;
+
+    /**
+     * Seeds the cache of the given class loader with the snapshot in the given file, unless it is out of date.
+     *
+     * @return
+     *      whether the snapshot was used; not if caching is off, the file does not exist or cannot be read,
+     *      or the index files have changed since.
+     */
+    public static boolean load(ClassLoader cl, Path file) throws IOException {
+        if (!Index.caching) {
+            return false;
+        }
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(file);
+        } catch (NoSuchFileException x) {
+            return false;
+        }
+        BinaryIndex index;
+        byte[] saved;
+        try {
+            ByteArrayInputStream is = new ByteArrayInputStream(bytes);
+            DataInputStream in = new DataInputStream(is);
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                LOGGER.log(Level.FINE, "Ignoring {0}, written by another version", file);
+                return false;
+            }
+            saved = new byte[in.readUnsignedShort()];
+            in.readFully(saved);
+            index = BinaryIndex.read(is);
+        } catch (IOException | RuntimeException x) {
+            LOGGER.log(Level.WARNING, "Failed to read " + file + ", reading index files instead", x);
+            return false;
+        }
+        if (!Arrays.equals(saved, fingerprint(cl))) {
+            LOGGER.log(Level.FINE, "Ignoring {0}, as index files have changed", file);
+            return false;
+        }
+
+        LoaderCache cache = LoaderCache.of(cl);
+        for (String key : index.getAnnotationNames()) {
+            cache.putListing(key, index.getListing(key).compact());
+        }
+        IndexListener listener = Index.listener;
+        if (listener != null) {
+            listener.resourceRead(null, file.toUri().toString(), bytes.length);
+        }
+        return true;
+    }
+
+    /**
+     * Writes what has been cached about the given class loader so far to the given file, replacing it.
+     *
+     * @return
+     *      false if index files are found in something else than jar files and directories of the file system,
+     *      whose changes cannot be told, in which case nothing is written.
+     */
+    public static boolean save(ClassLoader cl, Path file) throws IOException {
+        Map<String, Listing> listings = new TreeMap<>(LoaderCache.of(cl).getListings());
+        byte[] fingerprint = fingerprint(cl);
+        if (fingerprint == null) {
+            return false;
+        }
+        BinaryIndex index = new BinaryIndex();
+        for (Map.Entry<String, Listing> e : listings.entrySet()) {
+            index.addAll(e.getKey(), e.getValue());
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeShort(fingerprint.length);
+        out.write(fingerprint);
+        index.write(out);
+
+        Path dir = file.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+        try {
+            try (OutputStream os = Files.newOutputStream(tmp)) {
+                baos.writeTo(os);
+            }
+            try {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException x) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        return true;
+    }
+
+    /**
+     * Digests the jar files and directories the class loader loads from, as described above.
+     *
+     * @return
+     *      null if some of them are not in the file system.
+     */
+    static byte[] fingerprint(ClassLoader cl) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException x) {
+            throw new AssertionError(x);
+        }
+        DataOutputStream out = new DataOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+                digest.update((byte) b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                digest.update(b, off, len);
+            }
+        });
+        List<URL> classPath = IndexDirectory.classPath(cl);
+        if (classPath != null) {
+            for (URL url : classPath) {
+                Path f = toPath(url);
+                if (f == null) {
+                    return null;
+                }
+                out.writeUTF(url.toString());
+                if (url.getPath().endsWith("/")) {
+                    for (String resource : RESOURCES) {
+                        writeResource(out, f.resolve(resource));
+                    }
+                } else {
+                    writeResource(out, f);
+                }
+            }
+        } else {
+            for (String resource : RESOURCES) {
+                out.writeUTF(resource);
+                Enumeration<URL> res = cl.getResources(resource);
+                while (res.hasMoreElements()) {
+                    URL url = res.nextElement();
+                    Path f = toPath(url);
+                    if (f == null) {
+                        return null;
+                    }
+                    out.writeUTF(url.toString());
+                    writeResource(out, f);
+                }
+            }
+        }
+        out.flush();
+        return digest.digest();
+    }
+
+    /**
+     * Resources making up the fingerprint of a jar file or directory, directories ending with {@code /}.
+     */
+    private static final List<String> RESOURCES = List.of(Index.PREFIXES.get(0), Index.PREFIXES.get(1), Index.TRANSITIVE_PREFIX,
+            BinaryIndex.RESOURCE, IndexAggregator.COVERED, JarFile.MANIFEST_NAME);
+
+    /**
+     * Writes the attributes of a file, those of each file directly in it if a directory, in a stable order,
+     * or that it does not exist.
+     */
+    private static void writeResource(DataOutputStream out, Path f) throws IOException {
+        if (Files.isDirectory(f)) {
+            List<Path> files;
+            try (Stream<Path> s = Files.list(f)) {
+                files = s.sorted().collect(Collectors.toList());
+            }
+            out.writeInt(files.size());
+            for (Path file : files) {
+                out.writeUTF(file.getFileName().toString());
+                writeAttributes(out, file);
+            }
+        } else if (Files.exists(f)) {
+            out.writeInt(-1);
+            writeAttributes(out, f);
+        } else {
+            out.writeInt(-2);
+        }
+    }
+
+    private static void writeAttributes(DataOutputStream out, Path f) throws IOException {
+        BasicFileAttributes a = Files.readAttributes(f, BasicFileAttributes.class);
+        out.writeLong(a.size());
+        out.writeLong(a.lastModifiedTime().toMillis());
+    }
+
+    /**
+     * Determines the file of a {@code file:} URL, or the jar file of a {@code jar:file:} one.
+     *
+     * @return
+     *      null for other URLs.
+     */
+    private static Path toPath(URL url) throws IOException {
+        if (url.getProtocol().equals("jar")) {
+            url = ((JarURLConnection) url.openConnection()).getJarFileURL();
+        }
+        if (!url.getProtocol().equals("file")) {
+            return null;
+        }
+        try {
+            return Paths.get(url.toURI());
+        } catch (URISyntaxException | IllegalArgumentException | FileSystemNotFoundException x) {
+            return null;
+        }
+    }
+
+    private IndexSnapshot() {}
+
+    private static final Logger LOGGER = Logger.getLogger(IndexSnapshot.class.getName());
+}
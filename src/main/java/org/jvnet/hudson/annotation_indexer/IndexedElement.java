@@ -0,0 +1,181 @@
+package org.jvnet.hudson.annotation_indexer;
+
+import java.lang.annotation.Annotation;
+import java.lang.annotation.ElementType;
+import java.lang.reflect.AnnotatedElement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Use of an {@link Indexed} annotation as listed in the index, before anything gets loaded.
+ *
+ * <p>
+ * This lets callers decide what to load based on names alone,
+ * and only {@linkplain #resolve() resolve} the elements they are interested in.
+ *
+ * @see Index#listElements(Class, ClassLoader)
+ */
+public final class IndexedElement {
+    private final Class<? extends Annotation> type;
+    private final ClassLoader cl;
+    private final String name;
+    /**
+     * Descriptor of the member as understood by {@link Resolver}, or null if not known.
+     */
+    private final String member;
+    private final Map<String, Object> attributes;
+
+    IndexedElement(Class<? extends Annotation> type, ClassLoader cl, String name, String member, Map<String, Object> attributes) {
+        this.type = type;
+        this.cl = cl;
+        this.name = name;
+        this.member = member;
+        this.attributes = attributes;
+    }
+
+    /**
+     * The annotation this element is annotated with.
+     */
+    public Class<? extends Annotation> getAnnotationType() {
+        return type;
+    }
+
+    /**
+     * Binary name of the class that is annotated or declares the annotated member,
+     * name of the package for {@link ElementType#PACKAGE},
+     * or name of the module for {@link ElementType#MODULE}.
+     */
+    public String getClassName() {
+        if (isPackage()) {
+            return name.substring(0, name.length() - 2);
+        }
+        return isModule() ? name.substring(0, name.length() - 1) : name;
+    }
+
+    /**
+     * Kind of the annotated element: {@link ElementType#TYPE}, {@link ElementType#FIELD}, {@link ElementType#METHOD},
+     * {@link ElementType#CONSTRUCTOR}, {@link ElementType#PARAMETER}, {@link ElementType#RECORD_COMPONENT},
+     * {@link ElementType#PACKAGE} or {@link ElementType#MODULE}.
+     *
+     * @return
+     *      null if the index does not tell which members of the class are annotated,
+     *      in which case this stands for all the annotated elements of the class.
+     */
+    public ElementType getKind() {
+        if (isPackage()) {
+            return ElementType.PACKAGE;
+        }
+        if (isModule()) {
+            return ElementType.MODULE;
+        }
+        if (member == null) {
+            return null;
+        }
+        if (member.isEmpty()) {
+            return ElementType.TYPE;
+        }
+        if (member.charAt(0) == ':') {
+            return ElementType.RECORD_COMPONENT;
+        }
+        int paren = member.indexOf('(');
+        if (paren < 0) {
+            return ElementType.FIELD;
+        }
+        if (member.indexOf('#', paren) >= 0) {
+            return ElementType.PARAMETER;
+        }
+        return member.startsWith("<init>(") ? ElementType.CONSTRUCTOR : ElementType.METHOD;
+    }
+
+    /**
+     * Name of the annotated field, record component or method, or {@code <init>} for a constructor,
+     * or of the method or constructor declaring the annotated parameter.
+     *
+     * @return
+     *      null unless this is a member.
+     */
+    public String getMemberName() {
+        if (member == null || member.isEmpty()) {
+            return null;
+        }
+        if (member.charAt(0) == ':') {
+            return member.substring(1);
+        }
+        int paren = member.indexOf('(');
+        return paren < 0 ? member : member.substring(0, paren);
+    }
+
+    /**
+     * JVM method descriptor of the annotated method or constructor, such as {@code (Ljava/lang/String;)V},
+     * or of the one declaring the annotated parameter.
+     *
+     * @return
+     *      null unless this is a method, constructor or parameter.
+     */
+    public String getDescriptor() {
+        if (member == null) {
+            return null;
+        }
+        int paren = member.indexOf('(');
+        if (paren < 0) {
+            return null;
+        }
+        int hash = member.indexOf('#', paren);
+        return hash < 0 ? member.substring(paren) : member.substring(paren, hash);
+    }
+
+    /**
+     * Index of the annotated parameter in the {@linkplain #getDescriptor() descriptor},
+     * which also counts those added by the compiler, as does {@link java.lang.reflect.Executable#getParameters()}.
+     *
+     * @return
+     *      -1 unless this is a parameter.
+     */
+    public int getParameterIndex() {
+        if (getKind() != ElementType.PARAMETER) {
+            return -1;
+        }
+        return Integer.parseInt(member.substring(member.indexOf('#', member.indexOf('(')) + 1));
+    }
+
+    /**
+     * Values of the annotation attributes, as recorded at compile time, without loading the annotation or the element.
+     * Values are boxed primitives or strings, or lists thereof for arrays.
+     * Enum constants are represented by their names, and classes by their binary names.
+     * Attributes whose values are annotations are not recorded.
+     *
+     * @return
+     *      empty unless the index was generated with {@code -Aannotation_indexer.attributes=true}.
+     * @see AnnotationProcessorImpl
+     */
+    public Map<String, Object> getAttributes() {
+        return attributes;
+    }
+
+    /**
+     * Loads the class and looks up the annotated element.
+     *
+     * @return
+     *      the annotated element, or all the annotated elements of the class if {@link #getKind()} is null.
+     *      Empty if the class cannot be loaded or no longer carries the annotation.
+     */
+    public List<AnnotatedElement> resolve() {
+        List<AnnotatedElement> elements = new ArrayList<>(1);
+        Resolver.resolve(type, cl, name, member != null ? new String[] {member} : null, Resolver.ALL, false, elements);
+        return elements;
+    }
+
+    private boolean isPackage() {
+        return name.endsWith(".*");
+    }
+
+    private boolean isModule() {
+        return name.endsWith("/");
+    }
+
+    @Override
+    public String toString() {
+        return member == null || member.isEmpty() ? name : name + '#' + member;
+    }
+}
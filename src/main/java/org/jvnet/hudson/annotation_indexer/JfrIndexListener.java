@@ -0,0 +1,166 @@
+package org.jvnet.hudson.annotation_indexer;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Records what {@link Index} does as JDK Flight Recorder events, in the {@code Annotation Indexer} category.
+ *
+ * <p>
+ * Events are only created while a recording has them enabled, so this can be left installed:
+ * <pre>
+ * Index.setListener(new JfrIndexListener());
+ * </pre>
+ * Class loading and reflection events are disabled by default, as there is one per listed class;
+ * failures can be counted by grouping on their exception type.
+ */
+public class JfrIndexListener implements IndexListener {
+    /**
+     * Types of the events, which unlike the events themselves tell whether they are enabled without any allocation.
+     */
+    private static final EventType RESOURCE_READ = EventType.getEventType(ResourceReadEvent.class),
+            LISTED = EventType.getEventType(ListedEvent.class),
+            CLASS_LOADED = EventType.getEventType(ClassLoadedEvent.class),
+            REFLECTED = EventType.getEventType(ReflectedEvent.class),
+            FAILED = EventType.getEventType(FailedEvent.class);
+
+    @Override
+    public void resourceRead(String annotationName, String root, long bytes) {
+        if (RESOURCE_READ.isEnabled()) {
+            ResourceReadEvent e = new ResourceReadEvent();
+            e.annotation = annotationName;
+            e.root = root;
+            e.bytes = bytes;
+            e.commit();
+        }
+    }
+
+    @Override
+    public void listed(String annotationName, int classNames, long nanos) {
+        if (LISTED.isEnabled()) {
+            ListedEvent e = new ListedEvent();
+            e.annotation = annotationName;
+            e.classNames = classNames;
+            e.readTime = nanos;
+            e.commit();
+        }
+    }
+
+    @Override
+    public void classLoaded(String className, long nanos) {
+        if (CLASS_LOADED.isEnabled()) {
+            ClassLoadedEvent e = new ClassLoadedEvent();
+            e.className = className;
+            e.loadTime = nanos;
+            e.commit();
+        }
+    }
+
+    @Override
+    public void reflected(String className, int elements, long nanos) {
+        if (REFLECTED.isEnabled()) {
+            ReflectedEvent e = new ReflectedEvent();
+            e.className = className;
+            e.elements = elements;
+            e.reflectionTime = nanos;
+            e.commit();
+        }
+    }
+
+    @Override
+    public void failed(String name, Throwable failure) {
+        if (FAILED.isEnabled()) {
+            FailedEvent e = new FailedEvent();
+            e.name = name;
+            e.exceptionType = failure.getClass().getName();
+            e.message = failure.getMessage();
+            e.commit();
+        }
+    }
+
+    @Name("org.jvnet.hudson.annotation_indexer.ResourceRead")
+    @Label("Index Resource Read")
+    @Category("Annotation Indexer")
+    @StackTrace(false)
+    static class ResourceReadEvent extends Event {
+        @Label("Annotation")
+        @Description("Null for a binary index")
+        String annotation;
+
+        @Label("Root")
+        String root;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("org.jvnet.hudson.annotation_indexer.Listed")
+    @Label("Annotation Listed")
+    @Category("Annotation Indexer")
+    @StackTrace(false)
+    static class ListedEvent extends Event {
+        @Label("Annotation")
+        String annotation;
+
+        @Label("Class Names")
+        int classNames;
+
+        @Label("Read Time")
+        @Timespan
+        long readTime;
+    }
+
+    @Name("org.jvnet.hudson.annotation_indexer.ClassLoaded")
+    @Label("Indexed Class Loaded")
+    @Category("Annotation Indexer")
+    @StackTrace(false)
+    @Enabled(false)
+    static class ClassLoadedEvent extends Event {
+        @Label("Class Name")
+        String className;
+
+        @Label("Load Time")
+        @Timespan
+        long loadTime;
+    }
+
+    @Name("org.jvnet.hudson.annotation_indexer.Reflected")
+    @Label("Indexed Class Reflected")
+    @Category("Annotation Indexer")
+    @StackTrace(false)
+    @Enabled(false)
+    static class ReflectedEvent extends Event {
+        @Label("Class Name")
+        String className;
+
+        @Label("Annotated Elements")
+        int elements;
+
+        @Label("Reflection Time")
+        @Timespan
+        long reflectionTime;
+    }
+
+    @Name("org.jvnet.hudson.annotation_indexer.Failed")
+    @Label("Indexed Class Failed")
+    @Category("Annotation Indexer")
+    static class FailedEvent extends Event {
+        @Label("Name")
+        String name;
+
+        @Label("Exception Type")
+        String exceptionType;
+
+        @Label("Message")
+        String message;
+    }
+}
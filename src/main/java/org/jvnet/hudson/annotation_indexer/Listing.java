@@ -0,0 +1,301 @@
+package org.jvnet.hudson.annotation_indexer;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Everything the index says about the uses of one annotation.
+ *
+ * <p>
+ * Entries are names as they would appear in the index file of the annotation,
+ * each with the descriptors of its annotated members, or null if those are not known.
+ * They are kept in a pair of arrays that are appended to while reading,
+ * then sorted and deduplicated in one go the first time they are queried.
+ * Instances handed out by {@link LoaderCache} have already been {@linkplain #compact() compacted}
+ * and must be treated as read-only.
+ *
+ * @see Resolver
+ */
+final class Listing {
+    private static final String[] NO_NAMES = new String[0];
+    private static final String[][] NO_MEMBERS = new String[0][];
+
+    private String[] names = NO_NAMES;
+    private String[][] members = NO_MEMBERS;
+    private int size;
+    /**
+     * Whether {@link #names} are sorted and unique.
+     */
+    private boolean compact = true;
+    /**
+     * Whether any entry records its members.
+     */
+    private boolean hasMembers;
+
+    /**
+     * Attribute values of the annotation on the members, keyed by {@link #key(String, String)}.
+     * Null until some are recorded.
+     */
+    private Map<String, Map<String, Object>> attributes;
+
+    /**
+     * Adds an entry, where not knowing the members of either the existing or the new one takes precedence.
+     */
+    void add(String name, String[] members) {
+        if (size == names.length) {
+            int capacity = Math.max(8, size * 2);
+            names = Arrays.copyOf(names, capacity);
+            this.members = Arrays.copyOf(this.members, capacity);
+        }
+        if (compact && size > 0 && names[size - 1].compareTo(name) >= 0) {
+            compact = false;
+        }
+        names[size] = name;
+        this.members[size] = members;
+        hasMembers |= members != null;
+        size++;
+    }
+
+    void addAll(Listing other) {
+        other.compact();
+        for (int i = 0; i < other.size; i++) {
+            add(other.names[i], other.members[i]);
+        }
+        if (other.attributes != null) {
+            if (attributes == null) {
+                attributes = new HashMap<>();
+            }
+            attributes.putAll(other.attributes);
+        }
+    }
+
+    /**
+     * Adds the entries of one listing, with the members and attribute values recorded for them by another, if any,
+     * as when reading an index file along with a binary index that may not list all of its entries.
+     */
+    void addAll(Listing names, Listing recorded) {
+        names.compact();
+        recorded.compact();
+        for (int i = 0; i < names.size; i++) {
+            int j = Arrays.binarySearch(recorded.names, 0, recorded.size, names.names[i]);
+            add(names.names[i], j >= 0 ? recorded.members[j] : null);
+        }
+        if (recorded.attributes != null) {
+            if (attributes == null) {
+                attributes = new HashMap<>();
+            }
+            attributes.putAll(recorded.attributes);
+        }
+    }
+
+    /**
+     * Sorts and deduplicates the entries.
+     *
+     * @return this
+     */
+    Listing compact() {
+        if (compact) {
+            return this;
+        }
+        if (!hasMembers) {
+            Arrays.sort(names, 0, size);
+            int w = 0;
+            for (int r = 0; r < size; r++) {
+                if (w == 0 || !names[w - 1].equals(names[r])) {
+                    names[w++] = names[r];
+                }
+            }
+            Arrays.fill(names, w, size, null);
+            size = w;
+        } else {
+            // only happens when merging binary indices, so not worth an in-place sort
+            Map<String, String[]> merged = new TreeMap<>();
+            for (int i = 0; i < size; i++) {
+                String name = names[i];
+                if (!merged.containsKey(name)) {
+                    merged.put(name, members[i]);
+                } else {
+                    merged.put(name, merge(merged.get(name), members[i]));
+                }
+            }
+            Arrays.fill(names, null);
+            Arrays.fill(members, null);
+            size = 0;
+            for (Map.Entry<String, String[]> e : merged.entrySet()) {
+                names[size] = e.getKey();
+                members[size] = e.getValue();
+                size++;
+            }
+        }
+        compact = true;
+        return this;
+    }
+
+    private static String[] merge(String[] a, String[] b) {
+        if (a == null || b == null) {
+            return null;
+        }
+        Set<String> union = new TreeSet<>(Arrays.asList(a));
+        return union.addAll(Arrays.asList(b)) ? union.toArray(new String[0]) : a;
+    }
+
+    int size() {
+        compact();
+        return size;
+    }
+
+    String getName(int i) {
+        compact();
+        return names[i];
+    }
+
+    /**
+     * Descriptors of the annotated members of the i-th entry, or null if not known.
+     */
+    String[] getMembers(int i) {
+        compact();
+        return members[i];
+    }
+
+    boolean contains(String name) {
+        compact();
+        return Arrays.binarySearch(names, 0, size, name) >= 0;
+    }
+
+    /**
+     * Read-only view of the names, in order,
+     * which being a {@link SortedSet} lets {@link TreeSet} copy it in linear time.
+     */
+    SortedSet<String> getNames() {
+        compact();
+        return new Names(0, size);
+    }
+
+    /**
+     * View of the names from index {@code from} (inclusive) to {@code to} (exclusive).
+     */
+    private final class Names extends AbstractSet<String> implements SortedSet<String> {
+        private final int from, to;
+
+        Names(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public Iterator<String> iterator() {
+            return new Iterator<>() {
+                private int i = from;
+
+                @Override
+                public boolean hasNext() {
+                    return i < to;
+                }
+
+                @Override
+                public String next() {
+                    if (i >= to) {
+                        throw new NoSuchElementException();
+                    }
+                    return names[i++];
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return to - from;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return o instanceof String && Arrays.binarySearch(names, from, to, o) >= 0;
+        }
+
+        @Override
+        public Comparator<? super String> comparator() {
+            return null;
+        }
+
+        @Override
+        public SortedSet<String> subSet(String fromElement, String toElement) {
+            if (fromElement.compareTo(toElement) > 0) {
+                throw new IllegalArgumentException(fromElement + " > " + toElement);
+            }
+            return new Names(indexOf(fromElement), indexOf(toElement));
+        }
+
+        @Override
+        public SortedSet<String> headSet(String toElement) {
+            return new Names(from, indexOf(toElement));
+        }
+
+        @Override
+        public SortedSet<String> tailSet(String fromElement) {
+            return new Names(indexOf(fromElement), to);
+        }
+
+        @Override
+        public String first() {
+            if (from == to) {
+                throw new NoSuchElementException();
+            }
+            return names[from];
+        }
+
+        @Override
+        public String last() {
+            if (from == to) {
+                throw new NoSuchElementException();
+            }
+            return names[to - 1];
+        }
+
+        /**
+         * Index of the first name of this view that is not less than the given one.
+         */
+        private int indexOf(String name) {
+            int i = Arrays.binarySearch(names, from, to, Objects.requireNonNull(name));
+            return i >= 0 ? i : -i - 1;
+        }
+    }
+
+    void setAttributes(String name, String member, Map<String, Object> values) {
+        if (attributes == null) {
+            attributes = new HashMap<>();
+        }
+        attributes.put(key(name, member), values);
+    }
+
+    /**
+     * Attribute values of the annotation on the given member, or an empty map if not recorded.
+     */
+    Map<String, Object> getAttributes(String name, String member) {
+        Map<String, Object> values = attributes != null ? attributes.get(key(name, member)) : null;
+        return values != null ? Collections.unmodifiableMap(values) : Collections.emptyMap();
+    }
+
+    /**
+     * Whether any attribute values have been recorded.
+     */
+    boolean hasAttributes() {
+        return attributes != null;
+    }
+
+    static String key(String name, String member) {
+        return name + '#' + member;
+    }
+
+    static final Listing EMPTY = new Listing();
+}
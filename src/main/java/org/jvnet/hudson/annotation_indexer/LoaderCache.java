@@ -0,0 +1,340 @@
+package org.jvnet.hudson.annotation_indexer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.AnnotatedElement;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * What {@link Index} remembers about a single {@link ClassLoader}.
+ *
+ * <p>
+ * Instances are held weakly on the class loader, and otherwise only ever hold strings or data made of them,
+ * so that they never keep the class loader (or anything it loaded) reachable;
+ * except for {@linkplain #getResolved resolved elements}, which are held softly but do keep it reachable,
+ * as they reference its classes, until it is {@linkplain #invalidate invalidated}.
+ * Soft references are not cleared for lack of metaspace, so {@link Index#listShared} requires that.
+ */
+final class LoaderCache {
+    /**
+     * Caches keyed weakly by their class loader, so that looking one up once created takes no lock.
+     */
+    private static final ConcurrentMap<LoaderKey, LoaderCache> CACHES = new ConcurrentHashMap<>();
+
+    /**
+     * Keys of {@link #CACHES} whose class loader has been collected.
+     */
+    private static final ReferenceQueue<ClassLoader> COLLECTED = new ReferenceQueue<>();
+
+    /**
+     * Weak key of {@link #CACHES}, comparing class loaders by identity.
+     * A collected one only equals itself, so that it can still be removed.
+     */
+    private static final class LoaderKey extends WeakReference<ClassLoader> {
+        private final int hash;
+        /**
+         * Whether this is the key of the bootstrap class loader, which {@code null} stands for.
+         */
+        private final boolean bootstrap;
+
+        LoaderKey(ClassLoader cl, ReferenceQueue<ClassLoader> queue) {
+            super(cl, queue);
+            hash = System.identityHashCode(cl);
+            bootstrap = cl == null;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof LoaderKey))
+                return false;
+            LoaderKey that = (LoaderKey) o;
+            ClassLoader cl = get();
+            return bootstrap ? that.bootstrap : cl != null && cl == that.get();
+        }
+    }
+
+    /**
+     * Uses of an annotation, keyed by its FQCN,
+     * or by {@link Index#TRANSITIVE_PREFIX} followed by it for its direct and indirect uses together.
+     */
+    private final ConcurrentMap<String, Listing> listings = new ConcurrentHashMap<>();
+
+    /**
+     * Jar files of the file system seen through the class loader, keyed by their {@code jar:file:...!/} URL.
+     */
+    private final ConcurrentMap<String, IndexDirectory.Jar> jars = new ConcurrentHashMap<>();
+
+    /**
+     * {@link BinaryIndex}es visible to the class loader, keyed by the jar file or directory they were found in.
+     */
+    private volatile Stamped<Map<String, BinaryIndex>> binaryIndices;
+
+    /**
+     * Absolute paths of the jar files and directories covered by an {@link IndexAggregator} output visible to the class loader.
+     */
+    private volatile Stamped<Set<String>> covered;
+
+    /**
+     * FQCNs of the annotations that have index files visible to the class loader,
+     * or {@link #UNKNOWN} if some index directory could not be listed.
+     */
+    private volatile Set<String> indexedAnnotations;
+
+    static final Set<String> UNKNOWN = Collections.unmodifiableSet(new HashSet<>());
+
+    /**
+     * FQCNs of the annotations whose index files list a name, keyed by that name.
+     */
+    private volatile Map<String, Set<String>> annotationsByName;
+
+    /**
+     * Names of the listed classes that could not be loaded.
+     */
+    private final Set<String> missing = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Elements annotated by an annotation, keyed by its FQCN.
+     */
+    private final ConcurrentMap<String, SoftReference<List<AnnotatedElement>>> resolved = new ConcurrentHashMap<>();
+
+    /**
+     * Ongoing computations of {@link #resolved}.
+     */
+    private final ConcurrentMap<String, Flight> inFlight = new ConcurrentHashMap<>();
+
+    private LoaderCache() {
+    }
+
+    Listing getListing(String annotationName) {
+        return listings.get(annotationName);
+    }
+
+    void putListing(String annotationName, Listing listing) {
+        listings.put(annotationName, listing);
+    }
+
+    /**
+     * Read-only view of all the {@linkplain #getListing listings} so far.
+     */
+    Map<String, Listing> getListings() {
+        return Collections.unmodifiableMap(listings);
+    }
+
+    IndexDirectory.Jar getJar(String root) {
+        return jars.get(root);
+    }
+
+    void putJar(String root, IndexDirectory.Jar jar) {
+        jars.put(root, jar);
+    }
+
+    Stamped<Map<String, BinaryIndex>> getBinaryIndices() {
+        return binaryIndices;
+    }
+
+    void setBinaryIndices(Stamped<Map<String, BinaryIndex>> binaryIndices) {
+        this.binaryIndices = binaryIndices;
+    }
+
+    Stamped<Set<String>> getCovered() {
+        return covered;
+    }
+
+    void setCovered(Stamped<Set<String>> covered) {
+        this.covered = covered;
+    }
+
+    /**
+     * Something read from resources, along with the modification times of those that were found in directories,
+     * which recompiling a directory in place replaces, unlike those in jar files.
+     */
+    static final class Stamped<T> {
+        final T value;
+
+        /**
+         * Modification times of the files read, or null for those that did not exist.
+         */
+        private final Map<Path, FileTime> stamps;
+
+        Stamped(T value, Map<Path, FileTime> stamps) {
+            this.value = value;
+            this.stamps = stamps;
+        }
+
+        /**
+         * Whether none of the files read from directories has changed or gone since.
+         */
+        boolean isCurrent() {
+            for (Map.Entry<Path, FileTime> e : stamps.entrySet()) {
+                if (!Objects.equals(lastModified(e.getKey()), e.getValue())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        static FileTime lastModified(Path file) {
+            try {
+                return Files.getLastModifiedTime(file);
+            } catch (IOException x) {
+                return null;
+            }
+        }
+    }
+
+    Set<String> getIndexedAnnotations() {
+        return indexedAnnotations;
+    }
+
+    void setIndexedAnnotations(Set<String> indexedAnnotations) {
+        this.indexedAnnotations = indexedAnnotations;
+    }
+
+    Map<String, Set<String>> getAnnotationsByName() {
+        return annotationsByName;
+    }
+
+    void setAnnotationsByName(Map<String, Set<String>> annotationsByName) {
+        this.annotationsByName = annotationsByName;
+    }
+
+    boolean isMissing(String className) {
+        return missing.contains(className);
+    }
+
+    void addMissing(String className) {
+        missing.add(className);
+    }
+
+    void clearMissing() {
+        missing.clear();
+    }
+
+    /**
+     * Gets the elements annotated by an annotation, computing them unless already known.
+     * Threads asking for the same annotation at the same time wait for one of them to compute them,
+     * except for a thread asking again while computing them, as in a static initializer of a listed class,
+     * which computes them again rather than waiting for itself.
+     *
+     * @param compute
+     *      computes an immutable list
+     */
+    List<AnnotatedElement> getResolved(String annotationName, Callable<List<AnnotatedElement>> compute) throws IOException {
+        List<AnnotatedElement> elements = peekResolved(annotationName);
+        if (elements != null) {
+            return elements;
+        }
+
+        Flight flight = new Flight(annotationName, () -> {
+            // another flight may have landed since we looked
+            List<AnnotatedElement> landed = peekResolved(annotationName);
+            return landed != null ? landed : compute.call();
+        });
+        Flight existing = inFlight.putIfAbsent(annotationName, flight);
+        if (existing == null) {
+            flight.run();
+        } else if (existing.owner == Thread.currentThread()) {
+            flight.run();
+        } else {
+            flight = existing;
+        }
+        try {
+            return flight.get();
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            throw (InterruptedIOException) new InterruptedIOException("Interrupted while waiting for " + annotationName).initCause(x);
+        } catch (ExecutionException x) {
+            Throwable cause = x.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private List<AnnotatedElement> peekResolved(String annotationName) {
+        SoftReference<List<AnnotatedElement>> ref = resolved.get(annotationName);
+        return ref != null ? ref.get() : null;
+    }
+
+    /**
+     * Computation of {@link #resolved}, which publishes its result before leaving {@link #inFlight},
+     * so that a thread coming later finds either.
+     */
+    private final class Flight extends FutureTask<List<AnnotatedElement>> {
+        private final String annotationName;
+        private final Thread owner = Thread.currentThread();
+
+        Flight(String annotationName, Callable<List<AnnotatedElement>> compute) {
+            super(compute);
+            this.annotationName = annotationName;
+        }
+
+        @Override
+        protected void set(List<AnnotatedElement> elements) {
+            resolved.put(annotationName, new SoftReference<>(elements));
+            super.set(elements);
+        }
+
+        @Override
+        protected void done() {
+            inFlight.remove(annotationName, this);
+        }
+    }
+
+    static LoaderCache of(ClassLoader cl) {
+        LoaderCache cache = CACHES.get(new LoaderKey(cl, null));
+        if (cache != null) {
+            return cache;
+        }
+        expungeCollected();
+        return CACHES.computeIfAbsent(new LoaderKey(cl, COLLECTED), k -> new LoaderCache());
+    }
+
+    static void invalidate(ClassLoader cl) {
+        CACHES.remove(new LoaderKey(cl, null));
+    }
+
+    static void invalidateAll() {
+        CACHES.clear();
+    }
+
+    /**
+     * Drops the caches of the class loaders that have been collected.
+     */
+    private static void expungeCollected() {
+        for (Reference<? extends ClassLoader> k; (k = COLLECTED.poll()) != null; ) {
+            CACHES.remove(k);
+        }
+    }
+}
@@ -0,0 +1,481 @@
+package org.jvnet.hudson.annotation_indexer;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.AnnotatedElement;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Target;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Executable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Parameter;
+import java.lang.reflect.RecordComponent;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Turns index entries into {@link AnnotatedElement}s.
+ *
+ * <p>
+ * An entry is a name as listed in an index file, that is either a class name, a package name followed by {@code .*},
+ * or a module name followed by {@code /},
+ * and optionally the descriptors of its annotated members as recorded in a {@link BinaryIndex}:
+ * the empty string for the class, package or module itself,
+ * the name of a field,
+ * the name of a record component preceded by {@code :},
+ * the name of a method (or {@code <init>} for a constructor) followed by its JVM method descriptor,
+ * or the latter followed by {@code #} and the index of a parameter in the descriptor.
+ */
+final class Resolver {
+    /**
+     * Bits of the kinds of elements to resolve.
+     */
+    static final int TYPE = 1, METHOD = 2, FIELD = 4, CONSTRUCTOR = 8, PACKAGE = 16,
+            PARAMETER = 32, RECORD_COMPONENT = 64, MODULE = 128, ALL = 255;
+
+    /**
+     * Kinds of elements found in classes.
+     */
+    private static final int CLASS_KINDS = ALL & ~PACKAGE & ~MODULE;
+
+    /**
+     * Kinds of elements each annotation type can be applied to, as far as reflection can find it.
+     */
+    private static final ClassValue<Integer> TARGETS = new ClassValue<>() {
+        @Override
+        protected Integer computeValue(Class<?> type) {
+            Target target = type.getAnnotation(Target.class);
+            if (target == null) {
+                return ALL;
+            }
+            int kinds = 0;
+            for (ElementType t : target.value()) {
+                switch (t) {
+                case TYPE:
+                case ANNOTATION_TYPE:
+                    kinds |= TYPE;
+                    break;
+                case METHOD:
+                    kinds |= METHOD;
+                    break;
+                case FIELD:
+                    kinds |= FIELD;
+                    break;
+                case CONSTRUCTOR:
+                    kinds |= CONSTRUCTOR;
+                    break;
+                case PACKAGE:
+                    kinds |= PACKAGE;
+                    break;
+                case PARAMETER:
+                    kinds |= PARAMETER;
+                    break;
+                case RECORD_COMPONENT:
+                    kinds |= RECORD_COMPONENT;
+                    break;
+                case MODULE:
+                    kinds |= MODULE;
+                    break;
+                case TYPE_USE:
+                    // may also be used on declarations
+                    kinds |= ALL;
+                    break;
+                default:
+                    break;
+                }
+            }
+            return kinds;
+        }
+    };
+
+    /**
+     * Annotation types each annotation type is meta-annotated with, at any depth, as far as reflection can find them.
+     */
+    private static final ClassValue<Set<Class<?>>> META_ANNOTATIONS = new ClassValue<>() {
+        @Override
+        protected Set<Class<?>> computeValue(Class<?> type) {
+            Set<Class<?>> meta = new HashSet<>();
+            Deque<Class<?>> todo = new ArrayDeque<>();
+            todo.add(type);
+            while (!todo.isEmpty()) {
+                for (Annotation a : todo.remove().getAnnotations()) {
+                    if (meta.add(a.annotationType()))
+                        todo.add(a.annotationType());
+                }
+            }
+            return meta;
+        }
+    };
+
+    /**
+     * Determines the kinds of elements that are instances of the given {@link AnnotatedElement} subtype,
+     * so that reflection on other kinds can be skipped altogether.
+     */
+    static int kindsOf(Class<?> subType) {
+        int kinds = 0;
+        if (subType.isAssignableFrom(Class.class))
+            kinds |= TYPE;
+        if (subType.isAssignableFrom(Method.class))
+            kinds |= METHOD;
+        if (subType.isAssignableFrom(Field.class))
+            kinds |= FIELD;
+        if (subType.isAssignableFrom(Constructor.class))
+            kinds |= CONSTRUCTOR;
+        if (subType.isAssignableFrom(Package.class))
+            kinds |= PACKAGE;
+        if (subType.isAssignableFrom(Parameter.class))
+            kinds |= PARAMETER;
+        if (subType.isAssignableFrom(RecordComponent.class))
+            kinds |= RECORD_COMPONENT;
+        if (subType.isAssignableFrom(Module.class))
+            kinds |= MODULE;
+        return kinds;
+    }
+
+    /**
+     * Adds the elements of the given entry that carry the annotation.
+     *
+     * @param members
+     *      Descriptors of the annotated members, or null to look at all the members of the class.
+     */
+    static void resolve(Class<? extends Annotation> type, ClassLoader cl, String name, String[] members, List<AnnotatedElement> sink) {
+        resolve(type, cl, name, members, ALL, true, sink);
+    }
+
+    /**
+     * Adds the elements of the given entry that carry the annotation.
+     *
+     * @param members
+     *      Descriptors of the annotated members, or null to look at all the members of the class.
+     * @param kinds
+     *      Bits of the kinds of elements to add; others are not even looked up.
+     * @param fallback
+     *      Whether to look at all the members of the class if some of the given members cannot be found.
+     */
+    static void resolve(Class<? extends Annotation> type, ClassLoader cl, String name, String[] members, int kinds, boolean fallback, List<AnnotatedElement> sink) {
+        resolve(type, cl, name, members, kinds, fallback, false, sink);
+    }
+
+    /**
+     * Adds the elements of the given entry that carry the annotation, directly or not.
+     *
+     * @param transitive
+     *      Whether to also add elements that carry it through their annotations, as {@link #isPresent} tells.
+     */
+    static void resolve(Class<? extends Annotation> type, ClassLoader cl, String name, String[] members, int kinds, boolean fallback, boolean transitive, List<AnnotatedElement> sink) {
+        IndexListener listener = Index.listener;
+        LoaderCache cache = Index.caching ? LoaderCache.of(cl) : null;
+        if (!transitive)
+            kinds &= TARGETS.get(type);
+        try {
+            if (name.endsWith("/")) {
+                if ((kinds & MODULE) == 0) {
+                    return;
+                }
+                Module m = findModule(type, name.substring(0, name.length() - 1));
+                if (m != null && isPresent(m, type, transitive)) {
+                    sink.add(m);
+                }
+                return;
+            }
+            if (name.endsWith(".*")) {
+                if ((kinds & PACKAGE) == 0) {
+                    return;
+                }
+                Package p = getPackage(cl, name.substring(0, name.length() - 2));
+                if (p != null) {
+                    sink.add(p);
+                }
+                return;
+            }
+            if ((kinds & CLASS_KINDS) == 0 || cache != null && cache.isMissing(name)) {
+                return;
+            }
+
+            if (listener == null) {
+                resolveClass(type, loadClass(cl, name, cache), members, kinds, fallback, transitive, sink);
+                return;
+            }
+            long start = System.nanoTime();
+            Class<?> c = loadClass(cl, name, cache);
+            long loaded = System.nanoTime();
+            listener.classLoaded(name, loaded - start);
+            int mark = sink.size();
+            resolveClass(type, c, members, kinds, fallback, transitive, sink);
+            listener.reflected(name, sink.size() - mark, System.nanoTime() - loaded);
+        } catch (ClassNotFoundException | NoClassDefFoundError x) {
+            LOGGER.log(Level.FINE, "Failed to load: " + name, x);
+            if (listener != null) {
+                listener.failed(name, x);
+            }
+        } catch (LinkageError | RuntimeException x) {
+            LOGGER.log(Level.WARNING, "Failed to load " + name, x);
+            if (listener != null) {
+                listener.failed(name, x);
+            }
+        }
+    }
+
+    /**
+     * Loads a listed class, remembering in the cache, if any, that it is missing.
+     * Errors reflecting on a class that did load, such as a member referring to a missing class, are not remembered.
+     */
+    private static Class<?> loadClass(ClassLoader cl, String name, LoaderCache cache) throws ClassNotFoundException {
+        try {
+            return cl.loadClass(name);
+        } catch (ClassNotFoundException | NoClassDefFoundError x) {
+            // not worth trying again until the class loader is invalidated
+            if (cache != null) {
+                cache.addMissing(name);
+            }
+            throw x;
+        }
+    }
+
+    private static void resolveClass(Class<? extends Annotation> type, Class<?> c, String[] members, int kinds, boolean fallback, boolean transitive, List<AnnotatedElement> sink) {
+        if (members != null && (resolveMembers(type, c, members, kinds, transitive, sink) || !fallback)) {
+            return;
+        }
+        if ((kinds & TYPE) != 0 && isPresent(c, type, transitive))
+            sink.add(c);
+        if ((kinds & METHOD) != 0)
+            listAnnotatedElements(type, transitive, c.getDeclaredMethods(), sink);
+        if ((kinds & FIELD) != 0)
+            listAnnotatedElements(type, transitive, c.getDeclaredFields(), sink);
+        if ((kinds & CONSTRUCTOR) != 0)
+            listAnnotatedElements(type, transitive, c.getDeclaredConstructors(), sink);
+        if ((kinds & PARAMETER) != 0) {
+            for (Executable e : c.getDeclaredMethods())
+                listAnnotatedElements(type, transitive, e.getParameters(), sink);
+            for (Executable e : c.getDeclaredConstructors())
+                listAnnotatedElements(type, transitive, e.getParameters(), sink);
+        }
+        if ((kinds & RECORD_COMPONENT) != 0 && c.isRecord())
+            listAnnotatedElements(type, transitive, c.getRecordComponents(), sink);
+    }
+
+    private static void listAnnotatedElements(Class<? extends Annotation> type, boolean transitive, AnnotatedElement[] elements, List<AnnotatedElement> sink) {
+        for (AnnotatedElement m : elements) {
+            // this means we don't correctly handle
+            if (isPresent(m, type, transitive))
+                sink.add(m);
+        }
+    }
+
+    /**
+     * Whether the element carries the annotation, or if {@code transitive} one meta-annotated with it, at any depth.
+     * Either may be inherited from a superclass.
+     */
+    private static boolean isPresent(AnnotatedElement e, Class<? extends Annotation> type, boolean transitive) {
+        if (e.isAnnotationPresent(type))
+            return true;
+        if (transitive) {
+            for (Annotation a : e.getAnnotations()) {
+                if (META_ANNOTATIONS.get(a.annotationType()).contains(type))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Looks up just the recorded members,
+     * along with the bridge methods the compiler generated for the recorded methods, which carry copies of their annotations,
+     * as scanning all the members of the class would find them.
+     *
+     * @return
+     *      false if some member could not be found, in which case nothing has been added.
+     */
+    private static boolean resolveMembers(Class<? extends Annotation> type, Class<?> c, String[] members, int kinds, boolean transitive, List<AnnotatedElement> sink) {
+        int mark = sink.size();
+        Set<String> bridged = null;
+        try {
+            for (String m : members) {
+                AnnotatedElement e;
+                int paren = m.indexOf('(');
+                if (m.isEmpty()) {
+                    if ((kinds & TYPE) == 0)
+                        continue;
+                    e = c;
+                } else if (m.charAt(0) == ':') {
+                    if ((kinds & RECORD_COMPONENT) == 0)
+                        continue;
+                    e = getRecordComponent(c, m.substring(1));
+                } else if (paren < 0) {
+                    if ((kinds & FIELD) == 0)
+                        continue;
+                    e = c.getDeclaredField(m);
+                } else {
+                    boolean constructor = m.startsWith("<init>(");
+                    int hash = m.indexOf('#', paren);
+                    if ((kinds & (hash >= 0 ? PARAMETER : constructor ? CONSTRUCTOR : METHOD)) == 0)
+                        continue;
+                    Executable x = constructor
+                            ? c.getDeclaredConstructor(parameterTypes(c, m, paren))
+                            : getDeclaredMethod(c, m, paren, hash);
+                    e = hash >= 0 ? getParameter(x, m.substring(hash + 1)) : x;
+                    if (!constructor) {
+                        if (bridged == null)
+                            bridged = new HashSet<>();
+                        bridged.add(hash >= 0 ? m.substring(0, paren) + m.substring(hash) : m.substring(0, paren));
+                    }
+                }
+                if (isPresent(e, type, transitive))
+                    sink.add(e);
+            }
+            if (bridged != null)
+                resolveBridges(type, c, bridged, kinds, transitive, sink);
+            return true;
+        } catch (NoSuchFieldException | NoSuchMethodException | ClassNotFoundException x) {
+            LOGGER.log(Level.FINE, "Index of " + c.getName() + " is out of date", x);
+            IndexListener listener = Index.listener;
+            if (listener != null) {
+                listener.failed(c.getName(), x);
+            }
+            sink.subList(mark, sink.size()).clear();
+            return false;
+        }
+    }
+
+    /**
+     * Finds the method of the given descriptor, up to {@code #}, telling apart those that only differ in their return type,
+     * such as a method and its bridges.
+     */
+    private static Method getDeclaredMethod(Class<?> c, String descriptor, int paren, int hash) throws NoSuchMethodException, ClassNotFoundException {
+        String name = descriptor.substring(0, paren);
+        Method m = c.getDeclaredMethod(name, parameterTypes(c, descriptor, paren));
+        String returnType = descriptor.substring(descriptor.indexOf(')', paren) + 1, hash >= 0 ? hash : descriptor.length());
+        if (descriptorOf(m.getReturnType()).equals(returnType))
+            return m;
+        // getDeclaredMethod picked another method of the same parameters
+        for (Method other : c.getDeclaredMethods()) {
+            if (other.getName().equals(name) && descriptorOf(other.getReturnType()).equals(returnType)
+                    && Arrays.equals(other.getParameterTypes(), m.getParameterTypes()))
+                return other;
+        }
+        throw new NoSuchMethodException(c.getName() + "." + descriptor);
+    }
+
+    /**
+     * Adds the bridge methods of the given names, or their parameters for names followed by {@code #} and an index,
+     * that carry the annotation.
+     */
+    private static void resolveBridges(Class<? extends Annotation> type, Class<?> c, Set<String> names, int kinds, boolean transitive, List<AnnotatedElement> sink) {
+        for (Method m : c.getDeclaredMethods()) {
+            if (!m.isBridge())
+                continue;
+            if ((kinds & METHOD) != 0 && names.contains(m.getName()) && isPresent(m, type, transitive))
+                sink.add(m);
+            if ((kinds & PARAMETER) != 0) {
+                Parameter[] params = m.getParameters();
+                for (int i = 0; i < params.length; i++) {
+                    if (names.contains(m.getName() + "#" + i) && isPresent(params[i], type, transitive))
+                        sink.add(params[i]);
+                }
+            }
+        }
+    }
+
+    private static String descriptorOf(Class<?> t) {
+        if (t.isArray())
+            return t.getName().replace('.', '/');
+        if (!t.isPrimitive())
+            return "L" + t.getName().replace('.', '/') + ";";
+        if (t == void.class)
+            return "V";
+        return String.valueOf(t.arrayType().getName().charAt(1));
+    }
+
+    private static RecordComponent getRecordComponent(Class<?> c, String name) throws NoSuchFieldException {
+        RecordComponent[] components = c.getRecordComponents();
+        if (components != null) {
+            for (RecordComponent rc : components) {
+                if (rc.getName().equals(name))
+                    return rc;
+            }
+        }
+        throw new NoSuchFieldException(c.getName() + " has no record component " + name);
+    }
+
+    private static Parameter getParameter(Executable x, String index) throws NoSuchMethodException {
+        Parameter[] params = x.getParameters();
+        try {
+            return params[Integer.parseInt(index)];
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            throw new NoSuchMethodException(x + " has no parameter " + index);
+        }
+    }
+
+    /**
+     * Finds a module in the layer of the annotation type or its parents, or else in the boot layer.
+     */
+    private static Module findModule(Class<? extends Annotation> type, String name) {
+        ModuleLayer layer = type.getModule().getLayer();
+        Optional<Module> m = layer != null ? layer.findModule(name) : Optional.empty();
+        return m.or(() -> ModuleLayer.boot().findModule(name)).orElse(null);
+    }
+
+    /**
+     * Loads the parameter types of a method descriptor, starting right after the opening parenthesis.
+     */
+    private static Class<?>[] parameterTypes(Class<?> c, String descriptor, int paren) throws ClassNotFoundException {
+        ClassLoader cl = c.getClassLoader();
+        List<Class<?>> params = new ArrayList<>();
+        int i = paren + 1;
+        while (descriptor.charAt(i) != ')') {
+            int start = i;
+            while (descriptor.charAt(i) == '[')
+                i++;
+            if (descriptor.charAt(i) == 'L')
+                i = descriptor.indexOf(';', i);
+            i++;
+            String d = descriptor.substring(start, i);
+            if (d.length() == 1) {
+                params.add(primitive(d.charAt(0)));
+            } else if (d.charAt(0) == 'L') {
+                params.add(Class.forName(d.substring(1, d.length() - 1).replace('/', '.'), false, cl));
+            } else {
+                params.add(Class.forName(d.replace('/', '.'), false, cl));
+            }
+        }
+        return params.toArray(new Class<?>[0]);
+    }
+
+    private static Class<?> primitive(char d) throws ClassNotFoundException {
+        switch (d) {
+        case 'Z': return boolean.class;
+        case 'B': return byte.class;
+        case 'C': return char.class;
+        case 'S': return short.class;
+        case 'I': return int.class;
+        case 'J': return long.class;
+        case 'F': return float.class;
+        case 'D': return double.class;
+        default: throw new ClassNotFoundException("Unknown descriptor " + d);
+        }
+    }
+
+    /**
+     * Finds the package as defined by the class loader, through its {@code package-info} class if possible.
+     */
+    @SuppressWarnings("deprecation")
+    private static Package getPackage(ClassLoader cl, String name) {
+        try {
+            return cl.loadClass(name + ".package-info").getPackage();
+        } catch (ClassNotFoundException x) {
+            return Package.getPackage(name);
+        }
+    }
+
+    private Resolver() {}
+
+    private static final Logger LOGGER = Logger.getLogger(Index.class.getName());
+}
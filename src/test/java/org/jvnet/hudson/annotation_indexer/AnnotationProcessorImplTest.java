@@ -9,20 +9,49 @@ import com.karuslabs.elementary.junit.JavacExtension;
 import com.karuslabs.elementary.junit.annotations.Inline;
 import com.karuslabs.elementary.junit.annotations.Options;
 import com.karuslabs.elementary.junit.annotations.Processors;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.annotation.Annotation;
 import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
+import java.lang.module.Configuration;
+import java.lang.module.ModuleFinder;
 import java.lang.reflect.AnnotatedElement;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
+import java.lang.reflect.Parameter;
+import java.lang.reflect.RecordComponent;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.Processor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
 
 @ExtendWith(JavacExtension.class)
 @Options("-Werror")
@@ -160,4 +189,315 @@ class AnnotationProcessorImplTest {
         assertEquals("org.jvnet.hudson.annotation_indexer", p.getName());
     }
 
+    @Test void incremental(@TempDir Path dir) throws Exception {
+        Path out = dir.resolve("out");
+        compile(dir, out,
+                "some/pkg/A.java", "package some.pkg; @org.jvnet.hudson.annotation_indexer.Indexed @java.lang.annotation.Retention(java.lang.annotation.RetentionPolicy.RUNTIME) public @interface A {}",
+                "some/pkg/B.java", "package some.pkg; @org.jvnet.hudson.annotation_indexer.Indexed @java.lang.annotation.Retention(java.lang.annotation.RetentionPolicy.RUNTIME) public @interface B {}",
+                "some/pkg/Stuff.java", "package some.pkg; @A public class Stuff {@B public static class Nested {}}",
+                "some/pkg/Other.java", "package some.pkg; @A public class Other {}",
+                "some/pkg/Gone.java", "package some.pkg; public class Gone {@B public void run() {}}",
+                "some/pkg/Odd$Name.java", "package some.pkg; @A public class Odd$Name {@B public static class Nested {}}",
+                "some/gone/package-info.java", "@some.pkg.B package some.gone;");
+        assertEquals("some.pkg.Odd$Name\nsome.pkg.Other\nsome.pkg.Stuff\n", Files.readString(out.resolve("META-INF/services/annotations/some.pkg.A")).replace(System.lineSeparator(), "\n"));
+        assertEquals("some.gone.*\nsome.pkg.Gone\nsome.pkg.Odd$Name$Nested\nsome.pkg.Stuff$Nested\n", Files.readString(out.resolve("META-INF/services/annotations/some.pkg.B")).replace(System.lineSeparator(), "\n"));
+        Files.delete(out.resolve("some/pkg/Gone.class"));
+        Files.delete(out.resolve("some/gone/package-info.class"));
+        compile(dir, out,
+                "some/pkg/Stuff.java", "package some.pkg; public class Stuff {@B public static class Nested {}}");
+        assertEquals("some.pkg.Odd$Name\nsome.pkg.Other\n", Files.readString(out.resolve("META-INF/services/annotations/some.pkg.A")).replace(System.lineSeparator(), "\n"));
+        assertEquals("some.pkg.Odd$Name$Nested\nsome.pkg.Stuff$Nested\n", Files.readString(out.resolve("META-INF/services/annotations/some.pkg.B")).replace(System.lineSeparator(), "\n"));
+    }
+
+    /**
+     * Generates an annotated class in the first round, as other processors may.
+     */
+    @SupportedAnnotationTypes("*")
+    public static class Generator extends AbstractProcessor {
+        private boolean generated;
+
+        @Override
+        public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+            if (!generated) {
+                generated = true;
+                try (Writer w = processingEnv.getFiler().createSourceFile("some.pkg.Generated").openWriter()) {
+                    w.write("package some.pkg; @A public class Generated {}");
+                } catch (IOException x) {
+                    throw new UncheckedIOException(x);
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public SourceVersion getSupportedSourceVersion() {
+            return SourceVersion.latest();
+        }
+    }
+
+    @Test void multipleRounds(@TempDir Path dir) throws Exception {
+        Path out = dir.resolve("out");
+        compile(dir, out, List.of(new AnnotationProcessorImpl(), new Generator()),
+                "some/pkg/A.java", "package some.pkg; @org.jvnet.hudson.annotation_indexer.Indexed @java.lang.annotation.Retention(java.lang.annotation.RetentionPolicy.RUNTIME) public @interface A {}",
+                "some/pkg/Stuff.java", "package some.pkg; @A public class Stuff {}");
+        assertEquals("some.pkg.Generated\nsome.pkg.Stuff\n", Files.readString(out.resolve("META-INF/services/annotations/some.pkg.A")).replace(System.lineSeparator(), "\n"));
+    }
+
+    @Test void stats(@TempDir Path dir) throws Exception {
+        List<Diagnostic<? extends JavaFileObject>> diagnostics = compile(dir, dir.resolve("out"), List.of(new AnnotationProcessorImpl()), List.of("-A" + AnnotationProcessorImpl.STATS_OPTION + "=true"),
+                "some/pkg/A.java", "package some.pkg; @org.jvnet.hudson.annotation_indexer.Indexed @java.lang.annotation.Retention(java.lang.annotation.RetentionPolicy.RUNTIME) public @interface A {}",
+                "some/pkg/Stuff.java", "package some.pkg; @A @Deprecated public class Stuff {@A public void run() {}}");
+        assertEquals(1, diagnostics.size());
+        assertEquals(Diagnostic.Kind.NOTE, diagnostics.get(0).getKind());
+        assertTrue(diagnostics.get(0).getMessage(null).startsWith("annotation indexer: 1 rounds, 4 annotation types of which 1 indexed, 2 annotated elements scanned in "), diagnostics.get(0).getMessage(null));
+    }
+
+    /**
+     * Reports each use it sees, and rejects those on elements named {@code bad}.
+     */
+    public static class NotBad implements Validator {
+        @Override
+        public void check(Element use, RoundEnvironment e, ProcessingEnvironment env) {
+            env.getMessager().printMessage(Diagnostic.Kind.WARNING, "checked " + use.getSimpleName(), use);
+            if (use.getSimpleName().contentEquals("bad"))
+                env.getMessager().printMessage(Diagnostic.Kind.ERROR, "bad use", use);
+        }
+    }
+
+    @Test void validators(@TempDir Path dir) throws Exception {
+        // in this package, as this class is not public
+        String a = "package org.jvnet.hudson.annotation_indexer; @Indexed(validators = {AnnotationProcessorImplTest.NotBad.class, LocalValidator.class})"
+                + " @java.lang.annotation.Retention(java.lang.annotation.RetentionPolicy.RUNTIME) public @interface Checked {}";
+        String local = "package org.jvnet.hudson.annotation_indexer; public class LocalValidator implements Validator {"
+                + "public void check(javax.lang.model.element.Element use, javax.annotation.processing.RoundEnvironment e, javax.annotation.processing.ProcessingEnvironment env) {"
+                + "env.getMessager().printMessage(javax.tools.Diagnostic.Kind.WARNING, \"local \" + use.getSimpleName(), use);}}";
+        Path out = dir.resolve("out");
+        List<Diagnostic<? extends JavaFileObject>> diagnostics = compile(dir, out, List.of(new AnnotationProcessorImpl()), List.of(),
+                "org/jvnet/hudson/annotation_indexer/Checked.java", a,
+                "org/jvnet/hudson/annotation_indexer/LocalValidator.java", local,
+                "org/jvnet/hudson/annotation_indexer/CheckedStuff.java", "package org.jvnet.hudson.annotation_indexer; @Checked public class CheckedStuff {@Checked public void good() {} @Checked public int fine;}");
+        List<String> messages = messages(diagnostics);
+        assertEquals(List.of("WARNING checked CheckedStuff", "WARNING checked good", "WARNING checked fine"), messages.subList(1, messages.size()));
+        // compiled along with the annotation, so not loadable yet
+        assertTrue(messages.get(0).startsWith("WARNING Validator org.jvnet.hudson.annotation_indexer.LocalValidator cannot be loaded"), messages.get(0));
+        assertEquals("org.jvnet.hudson.annotation_indexer.CheckedStuff\n",
+                Files.readString(out.resolve("META-INF/services/annotations/org.jvnet.hudson.annotation_indexer.Checked")).replace(System.lineSeparator(), "\n"));
+
+        // now in the class path, though not in the processor path
+        diagnostics = compile(dir.resolve("more"), out, List.of(new AnnotationProcessorImpl()), List.of(),
+                "org/jvnet/hudson/annotation_indexer/MoreStuff.java", "package org.jvnet.hudson.annotation_indexer; @Checked public class MoreStuff {}");
+        assertEquals(List.of("WARNING checked MoreStuff", "WARNING local MoreStuff"), messages(diagnostics));
+
+        diagnostics = compile(false, dir.resolve("bad"), dir.resolve("bad/out"), List.of(new AnnotationProcessorImpl()), List.of("-A" + AnnotationProcessorImpl.BINARY_OPTION + "=true"),
+                "org/jvnet/hudson/annotation_indexer/Checked.java", a,
+                "org/jvnet/hudson/annotation_indexer/LocalValidator.java", local,
+                "org/jvnet/hudson/annotation_indexer/CheckedStuff.java", "package org.jvnet.hudson.annotation_indexer; public class CheckedStuff {@Checked public void good() {}}",
+                "org/jvnet/hudson/annotation_indexer/BadStuff.java", "package org.jvnet.hudson.annotation_indexer; public class BadStuff {@Checked public void bad() {}}");
+        assertTrue(diagnostics.stream().anyMatch(d -> d.getKind() == Diagnostic.Kind.ERROR && d.getMessage(null).equals("bad use")), diagnostics.toString());
+        // the valid use is still written, without the invalid one
+        assertEquals("org.jvnet.hudson.annotation_indexer.CheckedStuff\n",
+                Files.readString(dir.resolve("bad/out/META-INF/services/annotations/org.jvnet.hudson.annotation_indexer.Checked")).replace(System.lineSeparator(), "\n"));
+        BinaryIndex binary;
+        try (InputStream is = Files.newInputStream(dir.resolve("bad/out").resolve(BinaryIndex.RESOURCE))) {
+            binary = BinaryIndex.read(is);
+        }
+        assertTrue(binary.contains("org.jvnet.hudson.annotation_indexer.Checked", "org.jvnet.hudson.annotation_indexer.CheckedStuff"));
+        assertFalse(binary.contains("org.jvnet.hudson.annotation_indexer.Checked", "org.jvnet.hudson.annotation_indexer.BadStuff"));
+    }
+
+    private static List<String> messages(List<Diagnostic<? extends JavaFileObject>> diagnostics) {
+        List<String> messages = new ArrayList<>();
+        for (Diagnostic<? extends JavaFileObject> d : diagnostics) {
+            messages.add(d.getKind() + " " + d.getMessage(null));
+        }
+        return messages;
+    }
+
+    @Test void recordsAndParameters(@TempDir Path dir) throws Exception {
+        String[] sources = {
+            "some/pkg/Comp.java", "package some.pkg; @org.jvnet.hudson.annotation_indexer.Indexed @java.lang.annotation.Retention(java.lang.annotation.RetentionPolicy.RUNTIME)"
+                    + " @java.lang.annotation.Target(java.lang.annotation.ElementType.RECORD_COMPONENT) public @interface Comp {}",
+            "some/pkg/Param.java", "package some.pkg; @org.jvnet.hudson.annotation_indexer.Indexed @java.lang.annotation.Retention(java.lang.annotation.RetentionPolicy.RUNTIME)"
+                    + " @java.lang.annotation.Target(java.lang.annotation.ElementType.PARAMETER) public @interface Param {}",
+            "some/pkg/R.java", "package some.pkg; public record R(int x, @Comp String y) {public void run(String s, @Param int n) {}}",
+            "some/pkg/Outer.java", "package some.pkg; public class Outer {public class Inner {public Inner(@Param long q) {}}}",
+        };
+        for (boolean binary : new boolean[] {false, true}) {
+            Path out = dir.resolve("out" + binary);
+            compile(dir, out, List.of(new AnnotationProcessorImpl()), List.of("-A" + AnnotationProcessorImpl.BINARY_OPTION + "=" + binary), sources);
+            assertEquals("some.pkg.Outer$Inner\nsome.pkg.R\n", Files.readString(out.resolve("META-INF/services/annotations/some.pkg.Param")).replace(System.lineSeparator(), "\n"));
+            try (URLClassLoader cl = new URLClassLoader(new URL[] {out.toUri().toURL()}, AnnotationProcessorImplTest.class.getClassLoader())) {
+                @SuppressWarnings("unchecked") Class<? extends Annotation> comp = (Class<? extends Annotation>) cl.loadClass("some.pkg.Comp");
+                @SuppressWarnings("unchecked") Class<? extends Annotation> param = (Class<? extends Annotation>) cl.loadClass("some.pkg.Param");
+                List<String> found = new ArrayList<>();
+                for (RecordComponent rc : Index.list(comp, cl, RecordComponent.class)) {
+                    found.add(rc.getName());
+                }
+                for (Parameter p : Index.list(param, cl, Parameter.class)) {
+                    found.add(p.getDeclaringExecutable().getDeclaringClass().getSimpleName() + " " + p.getType());
+                }
+                assertEquals(List.of("y", "Inner long", "R int"), found);
+                if (binary) {
+                    List<IndexedElement> elements = Index.listElements(param, cl);
+                    assertEquals(ElementType.PARAMETER, elements.get(0).getKind());
+                    assertEquals("<init>", elements.get(0).getMemberName());
+                    assertEquals("(Lsome/pkg/Outer;J)V", elements.get(0).getDescriptor());
+                    assertEquals(1, elements.get(0).getParameterIndex());
+                    assertEquals(ElementType.RECORD_COMPONENT, Index.listElements(comp, cl).get(0).getKind());
+                    assertEquals("y", Index.listElements(comp, cl).get(0).getMemberName());
+                }
+            }
+        }
+    }
+
+    @Test void modules(@TempDir Path dir) throws Exception {
+        Path out = dir.resolve("out");
+        compile(dir, out, List.of(new AnnotationProcessorImpl()), List.of("--add-reads", "some.mod=ALL-UNNAMED"),
+                "module-info.java", "@some.pkg.Mod module some.mod {exports some.pkg;}",
+                "some/pkg/Mod.java", "package some.pkg; @org.jvnet.hudson.annotation_indexer.Indexed @java.lang.annotation.Retention(java.lang.annotation.RetentionPolicy.RUNTIME)"
+                        + " @java.lang.annotation.Target(java.lang.annotation.ElementType.MODULE) public @interface Mod {}");
+        assertEquals("some.mod/\n", Files.readString(out.resolve("META-INF/services/annotations/some.pkg.Mod")).replace(System.lineSeparator(), "\n"));
+
+        Configuration config = ModuleLayer.boot().configuration().resolve(ModuleFinder.of(out), ModuleFinder.of(), Set.of("some.mod"));
+        ModuleLayer layer = ModuleLayer.boot().defineModulesWithOneLoader(config, AnnotationProcessorImplTest.class.getClassLoader());
+        ClassLoader cl = layer.findLoader("some.mod");
+        @SuppressWarnings("unchecked") Class<? extends Annotation> mod = (Class<? extends Annotation>) cl.loadClass("some.pkg.Mod");
+        Iterator<Module> it = Index.list(mod, cl, Module.class).iterator();
+        assertEquals("some.mod", it.next().getName());
+        assertFalse(it.hasNext());
+
+        // no longer a module
+        Files.delete(out.resolve("module-info.class"));
+        compile(dir, out, List.of(new AnnotationProcessorImpl()), List.of(),
+                "some/pkg/Other.java", "package some.pkg; public class Other {}");
+        assertEquals("", Files.readString(out.resolve("META-INF/services/annotations/some.pkg.Mod")));
+    }
+
+    @Test void transitive(@TempDir Path dir) throws Exception {
+        Path out = dir.resolve("out");
+        List<String> options = List.of("-A" + AnnotationProcessorImpl.TRANSITIVE_OPTION + "=true");
+        compile(dir, out, List.of(new AnnotationProcessorImpl()), options,
+                "some/pkg/A.java", "package some.pkg; @org.jvnet.hudson.annotation_indexer.Indexed @java.lang.annotation.Retention(java.lang.annotation.RetentionPolicy.RUNTIME) @java.lang.annotation.Inherited public @interface A {}",
+                "some/pkg/Composed.java", "package some.pkg; @A @java.lang.annotation.Retention(java.lang.annotation.RetentionPolicy.RUNTIME) public @interface Composed {}",
+                "some/pkg/Deeper.java", "package some.pkg; @Composed @java.lang.annotation.Retention(java.lang.annotation.RetentionPolicy.RUNTIME) @java.lang.annotation.Inherited public @interface Deeper {}",
+                "some/pkg/Base.java", "package some.pkg; @A public class Base {}",
+                "some/pkg/Sub.java", "package some.pkg; public class Sub extends Base {}",
+                "some/pkg/Uses.java", "package some.pkg; public class Uses {@Composed public void run() {} @Deeper public static class Nested {}}",
+                "some/pkg/DeeperSub.java", "package some.pkg; public class DeeperSub extends Uses.Nested {}");
+        // javac already lists subclasses inheriting the annotation itself
+        assertEquals("some.pkg.Base\nsome.pkg.Composed\nsome.pkg.Sub\n", Files.readString(out.resolve("META-INF/services/annotations/some.pkg.A")).replace(System.lineSeparator(), "\n"));
+        assertEquals("some.pkg.Deeper\nsome.pkg.DeeperSub\nsome.pkg.Sub\nsome.pkg.Uses\nsome.pkg.Uses$Nested\n",
+                Files.readString(out.resolve("META-INF/services/annotations-transitive/some.pkg.A")).replace(System.lineSeparator(), "\n"));
+
+        // subclass compiled separately from its annotated superclass
+        compile(dir, out, List.of(new AnnotationProcessorImpl()), options,
+                "other/Far.java", "package other; public class Far extends some.pkg.Base {}");
+        try (URLClassLoader cl = new URLClassLoader(new URL[] {out.toUri().toURL()}, AnnotationProcessorImplTest.class.getClassLoader())) {
+            @SuppressWarnings("unchecked") Class<? extends Annotation> a = (Class<? extends Annotation>) cl.loadClass("some.pkg.A");
+            List<String> found = new ArrayList<>();
+            for (AnnotatedElement e : Index.listTransitive(a, cl)) {
+                found.add(e instanceof Class ? ((Class<?>) e).getName() : ((Method) e).getName());
+            }
+            assertEquals(List.of("other.Far", "some.pkg.Base", "some.pkg.Composed", "some.pkg.Deeper", "some.pkg.DeeperSub", "some.pkg.Sub", "run", "some.pkg.Uses$Nested"), found);
+            assertEquals(8, Index.listTransitiveClassNames(a, cl).size());
+            assertEquals(Set.of("other.Far", "some.pkg.Base", "some.pkg.Composed", "some.pkg.Sub"), Index.listClassNames(a, cl));
+        }
+    }
+
+    @Test void missingMemberType(@TempDir Path dir) throws Exception {
+        Path out = dir.resolve("out");
+        compile(dir, out,
+                "lib/A.java", "package lib; @org.jvnet.hudson.annotation_indexer.Indexed @java.lang.annotation.Retention(java.lang.annotation.RetentionPolicy.RUNTIME) public @interface A {}",
+                "lib/Ext.java", "package lib; @A public class Ext {public Opt opt() {return null;}}",
+                "lib/Opt.java", "package lib; public class Opt {}");
+        // an optional dependency, absent at run time
+        Files.delete(out.resolve("lib/Opt.class"));
+        Index.setCaching(true);
+        try (URLClassLoader cl = new URLClassLoader(new URL[] {out.toUri().toURL()}, AnnotationProcessorImplTest.class.getClassLoader())) {
+            @SuppressWarnings("unchecked") Class<? extends Annotation> a = (Class<? extends Annotation>) cl.loadClass("lib.A");
+            for (int i = 0; i < 2; i++) {
+                List<AnnotatedElement> found = new ArrayList<>();
+                Index.list(a, cl).forEach(found::add);
+                assertEquals(List.of(cl.loadClass("lib.Ext")), found);
+            }
+        } finally {
+            Index.setCaching(false);
+        }
+    }
+
+    @Test void formats(@TempDir Path dir) throws Exception {
+        Path out = dir.resolve("out");
+        compile(dir, out, List.of(new AnnotationProcessorImpl()), List.of("-A" + AnnotationProcessorImpl.FORMAT_OPTION + "=canonical"),
+                "some/pkg/A.java", "package some.pkg; @org.jvnet.hudson.annotation_indexer.Indexed @java.lang.annotation.Retention(java.lang.annotation.RetentionPolicy.RUNTIME) public @interface A {}",
+                "some/pkg/Stuff.java", "package some.pkg; @A public class Stuff {}",
+                "some/pkg/Other.java", "package some.pkg; @A public class Other {}");
+        assertEquals("some.pkg.Other\nsome.pkg.Stuff\n", Files.readString(out.resolve("META-INF/services/annotations/some.pkg.A")));
+
+        out = dir.resolve("front-coded");
+        List<String> options = List.of("-A" + AnnotationProcessorImpl.FORMAT_OPTION + "=front-coded");
+        compile(dir, out, List.of(new AnnotationProcessorImpl()), options,
+                "some/pkg/A.java", "package some.pkg; @org.jvnet.hudson.annotation_indexer.Indexed @java.lang.annotation.Retention(java.lang.annotation.RetentionPolicy.RUNTIME) public @interface A {}",
+                "some/pkg/B.java", "package some.pkg; @org.jvnet.hudson.annotation_indexer.Indexed @java.lang.annotation.Retention(java.lang.annotation.RetentionPolicy.RUNTIME) public @interface B {}",
+                "some/pkg/Stuff.java", "package some.pkg; @A public class Stuff {@B public static class Nested {}}",
+                "some/pkg/Other.java", "package some.pkg; @A public class Other {}",
+                "some/pkg/Gone.java", "package some.pkg; public class Gone {@B public void run() {}}");
+        assertEquals("#front-coded\n0 some.pkg.Other\n9 Stuff\n", Files.readString(out.resolve("META-INF/services/annotations/some.pkg.A")));
+        assertEquals("#front-coded\n0 some.pkg.Gone\n9 Stuff$Nested\n", Files.readString(out.resolve("META-INF/services/annotations/some.pkg.B")));
+        try (URLClassLoader cl = new URLClassLoader(new URL[] {out.toUri().toURL()}, AnnotationProcessorImplTest.class.getClassLoader())) {
+            @SuppressWarnings("unchecked") Class<? extends Annotation> a = (Class<? extends Annotation>) cl.loadClass("some.pkg.A");
+            assertEquals(Set.of("some.pkg.Other", "some.pkg.Stuff"), Index.listClassNames(a, cl));
+        }
+
+        // existing front-coded files are read back, whether pruned or merged
+        Files.delete(out.resolve("some/pkg/Gone.class"));
+        compile(dir, out, List.of(new AnnotationProcessorImpl()), options,
+                "some/pkg/Stuff.java", "package some.pkg; public class Stuff {@B public static class Nested {}}");
+        assertEquals("#front-coded\n0 some.pkg.Other\n", Files.readString(out.resolve("META-INF/services/annotations/some.pkg.A")));
+        assertEquals("#front-coded\n0 some.pkg.Stuff$Nested\n", Files.readString(out.resolve("META-INF/services/annotations/some.pkg.B")));
+    }
+
+    private static void compile(Path dir, Path out, String... pathsAndSources) throws Exception {
+        compile(dir, out, List.of(new AnnotationProcessorImpl()), pathsAndSources);
+    }
+
+    private static void compile(Path dir, Path out, List<Processor> processors, String... pathsAndSources) throws Exception {
+        compile(dir, out, processors, List.of(), pathsAndSources);
+    }
+
+    /**
+     * Compiles the given sources into an output directory, which is also in the class path as in an incremental build,
+     * along with the main and test classes.
+     *
+     * @return the diagnostics, if successful
+     */
+    private static List<Diagnostic<? extends JavaFileObject>> compile(Path dir, Path out, List<Processor> processors, List<String> options, String... pathsAndSources) throws Exception {
+        return compile(true, dir, out, processors, options, pathsAndSources);
+    }
+
+    /**
+     * @param success whether the compilation is expected to succeed
+     */
+    private static List<Diagnostic<? extends JavaFileObject>> compile(boolean success, Path dir, Path out, List<Processor> processors, List<String> options, String... pathsAndSources) throws Exception {
+        Files.createDirectories(out);
+        List<Path> files = new ArrayList<>();
+        for (int i = 0; i < pathsAndSources.length; i += 2) {
+            Path f = dir.resolve("src").resolve(pathsAndSources[i]);
+            Files.createDirectories(f.getParent());
+            Files.writeString(f, pathsAndSources[i + 1]);
+            files.add(f);
+        }
+        // with this class for validators
+        List<String> args = new ArrayList<>(List.of("-d", out.toString(), "-cp", Path.of(Indexed.class.getProtectionDomain().getCodeSource().getLocation().toURI())
+                + File.pathSeparator + Path.of(AnnotationProcessorImplTest.class.getProtectionDomain().getCodeSource().getLocation().toURI()) + File.pathSeparator + out));
+        args.addAll(options);
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        try (StandardJavaFileManager fm = javac.getStandardFileManager(null, null, null)) {
+            JavaCompiler.CompilationTask task = javac.getTask(null, fm, diagnostics, args, null, fm.getJavaFileObjectsFromPaths(files));
+            task.setProcessors(processors);
+            assertEquals(success, task.call(), diagnostics.getDiagnostics().toString());
+        }
+        return diagnostics.getDiagnostics();
+    }
+
 }
@@ -0,0 +1,215 @@
+package org.jvnet.hudson.annotation_indexer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import com.karuslabs.elementary.Results;
+import com.karuslabs.elementary.junit.JavacExtension;
+import com.karuslabs.elementary.junit.annotations.Inline;
+import com.karuslabs.elementary.junit.annotations.Options;
+import com.karuslabs.elementary.junit.annotations.Processors;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.annotation.ElementType;
+import java.lang.reflect.AnnotatedElement;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+
+@ExtendWith(JavacExtension.class)
+@Options("-A" + AnnotationProcessorImpl.ATTRIBUTES_OPTION + "=true")
+@Processors(AnnotationProcessorImpl.class)
+class BinaryIndexTest {
+
+    @Inline(
+            name = "some.pkg.A",
+            source = {
+                "package some.pkg;",
+                "@org.jvnet.hudson.annotation_indexer.Indexed @java.lang.annotation.Retention(java.lang.annotation.RetentionPolicy.RUNTIME) public @interface A {}",
+            })
+    @Inline(
+            name = "some.pkg.B",
+            source = {
+                "package some.pkg;",
+                "@org.jvnet.hudson.annotation_indexer.Indexed @java.lang.annotation.Retention(java.lang.annotation.RetentionPolicy.RUNTIME) public @interface B {",
+                "  int ordinal() default 0; String[] names(); java.lang.annotation.ElementType kind() default java.lang.annotation.ElementType.TYPE; Class<?> with() default Object.class;",
+                "}",
+            })
+    @Inline(
+            name = "some.pkg.Stuff",
+            source = {
+                "package some.pkg;",
+                "@A public class Stuff {@B(ordinal = 3, names = {\"x\", \"y\"}) public void run() {} public static class Nested {@A public int x;}}",
+            })
+    @Test
+    void generated(Results results) throws IOException {
+        assertEquals(Collections.emptyList(), results.diagnostics);
+        BinaryIndex index = BinaryIndex.read(new ByteArrayInputStream(Utils.getGeneratedResourceBytes(results.sources, BinaryIndex.RESOURCE)));
+        assertEquals(List.of("some.pkg.Stuff", "some.pkg.Stuff$Nested"), List.copyOf(index.getListing("some.pkg.A").getNames()));
+        assertEquals(List.of(""), List.of(index.getListing("some.pkg.A").getMembers(0)));
+        assertEquals(List.of("x"), List.of(index.getListing("some.pkg.A").getMembers(1)));
+        assertEquals(List.of("some.pkg.Stuff"), List.copyOf(index.getListing("some.pkg.B").getNames()));
+        assertEquals(List.of("run()V"), List.of(index.getListing("some.pkg.B").getMembers(0)));
+        assertEquals(Map.of("ordinal", 3, "names", List.of("x", "y"), "kind", "TYPE", "with", "java.lang.Object"), index.getListing("some.pkg.B").getAttributes("some.pkg.Stuff", "run()V"));
+        assertEquals(Map.of(), index.getListing("some.pkg.A").getAttributes("some.pkg.Stuff", ""));
+    }
+
+    @Test void indexFilesListEntries(@TempDir Path dir) throws Exception {
+        // as when merged with another jar file, whose binary index was dropped
+        Path withBinary = dir.resolve("a");
+        IndexTest.writeIndex(withBinary, "META-INF/services/annotations/", IndexTest.Marker.class, "some.pkg.A", "some.pkg.B");
+        BinaryIndex index = new BinaryIndex();
+        index.add(IndexTest.Marker.class.getName(), "some.pkg.A", null);
+        index.add(IndexTest.Marker.class.getName(), "some.pkg.Gone", null);
+        writeBinaryIndex(withBinary, index);
+        Path withoutBinary = dir.resolve("b");
+        IndexTest.writeIndex(withoutBinary, "META-INF/services/annotations/", IndexTest.Marker.class, "some.pkg.C");
+        try (URLClassLoader cl = new URLClassLoader(new URL[] {withBinary.toUri().toURL(), withoutBinary.toUri().toURL()}, null)) {
+            assertEquals(Set.of("some.pkg.A", "some.pkg.B", "some.pkg.C"), Index.listClassNames(IndexTest.Marker.class, cl));
+            assertEquals(Set.of("some.pkg.A", "some.pkg.B", "some.pkg.C"), Index.listClassNames(List.of(IndexTest.Marker.class), cl).get(IndexTest.Marker.class.getName()));
+        }
+    }
+
+    public static class Members {
+        @IndexTest.Marker public Object field;
+        public Object other;
+        @IndexTest.Marker public Members(String s) {}
+        @IndexTest.Marker public void run(int[] x, String y) {}
+        public void other() {}
+    }
+
+    @Test void members(@TempDir Path dir) throws Exception {
+        BinaryIndex index = new BinaryIndex();
+        index.add(IndexTest.Marker.class.getName(), Members.class.getName(), new String[] {"field", "<init>(Ljava/lang/String;)V", "run([ILjava/lang/String;)V"});
+        writeBinaryIndex(dir, index);
+        IndexTest.writeIndex(dir, "META-INF/services/annotations/", IndexTest.Marker.class, Members.class.getName());
+        try (URLClassLoader cl = new URLClassLoader(new URL[] {dir.toUri().toURL()}, BinaryIndexTest.class.getClassLoader())) {
+            List<AnnotatedElement> elements = new ArrayList<>();
+            Index.list(IndexTest.Marker.class, cl).forEach(elements::add);
+            assertEquals(List.of(Members.class.getDeclaredConstructor(String.class), Members.class.getDeclaredField("field"), Members.class.getDeclaredMethod("run", int[].class, String.class)), elements);
+        }
+    }
+
+    public static class Base<T> {
+        public Object get() {return null;}
+        public void set(T t) {}
+    }
+
+    public static class Covariant extends Base<String> {
+        @IndexTest.Marker @Override public String get() {return null;}
+        @IndexTest.Marker @Override public void set(String t) {}
+    }
+
+    @Test void bridges(@TempDir Path dir) throws Exception {
+        BinaryIndex index = new BinaryIndex();
+        index.add(IndexTest.Marker.class.getName(), Covariant.class.getName(), new String[] {"get()Ljava/lang/String;", "set(Ljava/lang/String;)V"});
+        writeBinaryIndex(dir, index);
+        IndexTest.writeIndex(dir, "META-INF/services/annotations/", IndexTest.Marker.class, Covariant.class.getName());
+        Set<AnnotatedElement> scanned = new HashSet<>();
+        for (Method m : Covariant.class.getDeclaredMethods()) {
+            if (m.isAnnotationPresent(IndexTest.Marker.class))
+                scanned.add(m);
+        }
+        assertEquals(4, scanned.size());
+        try (URLClassLoader cl = new URLClassLoader(new URL[] {dir.toUri().toURL()}, BinaryIndexTest.class.getClassLoader())) {
+            List<AnnotatedElement> elements = new ArrayList<>();
+            Index.list(IndexTest.Marker.class, cl).forEach(elements::add);
+            assertEquals(Covariant.class.getDeclaredMethod("get"), elements.get(0));
+            assertEquals(Covariant.class.getDeclaredMethod("set", String.class), elements.get(1));
+            assertEquals(scanned, new HashSet<>(elements));
+            assertEquals(4, elements.size());
+        }
+    }
+
+    @Test void outOfDateMembers(@TempDir Path dir) throws Exception {
+        BinaryIndex index = new BinaryIndex();
+        index.add(IndexTest.Marker.class.getName(), Members.class.getName(), new String[] {"field", "gone()V"});
+        writeBinaryIndex(dir, index);
+        IndexTest.writeIndex(dir, "META-INF/services/annotations/", IndexTest.Marker.class, Members.class.getName());
+        try (URLClassLoader cl = new URLClassLoader(new URL[] {dir.toUri().toURL()}, BinaryIndexTest.class.getClassLoader())) {
+            List<Class<?>> kinds = new ArrayList<>();
+            Index.list(IndexTest.Marker.class, cl).forEach(e -> kinds.add(e instanceof Method ? Method.class : e instanceof Field ? Field.class : Constructor.class));
+            assertEquals(List.of(Method.class, Field.class, Constructor.class), kinds);
+        }
+    }
+
+    @Test void recompiled(@TempDir Path dir) throws Exception {
+        BinaryIndex index = new BinaryIndex();
+        index.add(IndexTest.Marker.class.getName(), Members.class.getName(), new String[] {"field"});
+        writeBinaryIndex(dir, index);
+        IndexTest.writeIndex(dir, "META-INF/services/annotations/", IndexTest.Marker.class, Members.class.getName());
+        try (URLClassLoader cl = new URLClassLoader(new URL[] {dir.toUri().toURL()}, BinaryIndexTest.class.getClassLoader())) {
+            List<AnnotatedElement> elements = new ArrayList<>();
+            Index.list(IndexTest.Marker.class, cl).forEach(elements::add);
+            assertEquals(List.of(Members.class.getDeclaredField("field")), elements);
+
+            // as when recompiling the directory in place, without invalidating the class loader
+            Path idx = dir.resolve(BinaryIndex.RESOURCE);
+            FileTime time = Files.getLastModifiedTime(idx);
+            index.add(IndexTest.Marker.class.getName(), Members.class.getName(), new String[] {"field", "run([ILjava/lang/String;)V"});
+            writeBinaryIndex(dir, index);
+            Files.setLastModifiedTime(idx, FileTime.fromMillis(time.toMillis() + 2000));
+            elements.clear();
+            Index.list(IndexTest.Marker.class, cl).forEach(elements::add);
+            assertEquals(List.of(Members.class.getDeclaredField("field"), Members.class.getDeclaredMethod("run", int[].class, String.class)), elements);
+
+            Files.delete(idx);
+            elements.clear();
+            Index.list(IndexTest.Marker.class, cl).forEach(elements::add);
+            assertEquals(3, elements.size());
+        }
+    }
+
+    @Test void elements(@TempDir Path dir) throws Exception {
+        BinaryIndex index = new BinaryIndex();
+        index.add(IndexTest.Marker.class.getName(), Members.class.getName(), new String[] {"field", "run([ILjava/lang/String;)V"});
+        index.setAttributes(IndexTest.Marker.class.getName(), Members.class.getName(), "run([ILjava/lang/String;)V", Map.of("ordinal", 5, "names", List.of("a")));
+        index.add(IndexTest.Marker.class.getName(), "some.pkg.Missing", null);
+        writeBinaryIndex(dir, index);
+        IndexTest.writeIndex(dir, "META-INF/services/annotations/", IndexTest.Marker.class, Members.class.getName(), "some.pkg.Missing");
+        try (URLClassLoader cl = new URLClassLoader(new URL[] {dir.toUri().toURL()}, BinaryIndexTest.class.getClassLoader())) {
+            List<IndexedElement> elements = Index.listElements(IndexTest.Marker.class, cl);
+            assertEquals(3, elements.size());
+            IndexedElement field = elements.get(0);
+            assertEquals(Members.class.getName(), field.getClassName());
+            assertEquals(ElementType.FIELD, field.getKind());
+            assertEquals("field", field.getMemberName());
+            assertNull(field.getDescriptor());
+            assertEquals(Map.of(), field.getAttributes());
+            assertEquals(List.of(Members.class.getDeclaredField("field")), field.resolve());
+            IndexedElement method = elements.get(1);
+            assertEquals(ElementType.METHOD, method.getKind());
+            assertEquals("run", method.getMemberName());
+            assertEquals("([ILjava/lang/String;)V", method.getDescriptor());
+            assertEquals(Map.of("ordinal", 5, "names", List.of("a")), method.getAttributes());
+            assertEquals(List.of(Members.class.getDeclaredMethod("run", int[].class, String.class)), method.resolve());
+            IndexedElement missing = elements.get(2);
+            assertEquals("some.pkg.Missing", missing.getClassName());
+            assertNull(missing.getKind());
+            assertEquals(List.of(), missing.resolve());
+        }
+    }
+
+    private static void writeBinaryIndex(Path root, BinaryIndex index) throws IOException {
+        Files.createDirectories(root.resolve(BinaryIndex.RESOURCE).getParent());
+        try (OutputStream os = Files.newOutputStream(root.resolve(BinaryIndex.RESOURCE))) {
+            index.write(os);
+        }
+    }
+
+}
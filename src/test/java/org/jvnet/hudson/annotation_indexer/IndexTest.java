@@ -0,0 +1,680 @@
+package org.jvnet.hudson.annotation_indexer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.AnnotatedElement;
+import java.lang.reflect.Executable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class IndexTest {
+
+    @Retention(RetentionPolicy.RUNTIME) public @interface Marker {}
+    @Retention(RetentionPolicy.RUNTIME) public @interface Other {}
+    @Retention(RetentionPolicy.RUNTIME) public @interface Unused {}
+
+    @Test void caching(@TempDir Path dir) throws Exception {
+        writeIndex(dir, "META-INF/services/annotations/", Marker.class, "some.pkg.A");
+        try (URLClassLoader cl = new URLClassLoader(new URL[] {dir.toUri().toURL()}, null)) {
+            Index.setCaching(true);
+            try {
+                Set<String> names = Index.listClassNames(Marker.class, cl);
+                assertEquals(Set.of("some.pkg.A"), names);
+                // the caller's own copy, which does not change what is cached
+                names.add("some.pkg.Z");
+                writeIndex(dir, "META-INF/services/annotations/", Marker.class, "some.pkg.A", "some.pkg.B");
+                assertEquals(Set.of("some.pkg.A"), Index.listClassNames(Marker.class, cl));
+                Index.invalidate(cl);
+                assertEquals(new TreeSet<>(Set.of("some.pkg.A", "some.pkg.B")), Index.listClassNames(Marker.class, cl));
+            } finally {
+                Index.setCaching(false);
+            }
+            writeIndex(dir, "META-INF/services/annotations/", Marker.class, "some.pkg.C");
+            assertEquals(Set.of("some.pkg.C"), Index.listClassNames(Marker.class, cl));
+        }
+    }
+
+    @Test void bulk(@TempDir Path dir) throws Exception {
+        Path classes = dir.resolve("classes");
+        writeIndex(classes, "META-INF/annotations/", Marker.class, "some.pkg.A");
+        writeIndex(classes, "META-INF/services/annotations/", Other.class, "some.pkg.B");
+        Path jar = dir.resolve("lib.jar");
+        try (JarOutputStream jos = new JarOutputStream(Files.newOutputStream(jar))) {
+            jos.putNextEntry(new JarEntry("META-INF/"));
+            jos.putNextEntry(new JarEntry("META-INF/services/"));
+            jos.putNextEntry(new JarEntry("META-INF/services/annotations/"));
+            jos.putNextEntry(new JarEntry("META-INF/services/annotations/" + Marker.class.getName()));
+            jos.write("some.pkg.C\nsome.pkg.A\n".getBytes(StandardCharsets.UTF_8));
+        }
+        try (URLClassLoader cl = new URLClassLoader(new URL[] {classes.toUri().toURL(), jar.toUri().toURL()}, null)) {
+            Map<String, Set<String>> names = Index.listClassNames(List.of(Marker.class, Other.class, Unused.class), cl);
+            assertEquals(List.of(Marker.class.getName(), Other.class.getName(), Unused.class.getName()), List.copyOf(names.keySet()));
+            assertEquals(Set.of("some.pkg.A", "some.pkg.C"), names.get(Marker.class.getName()));
+            assertEquals(Set.of("some.pkg.B"), names.get(Other.class.getName()));
+            assertEquals(Set.of(), names.get(Unused.class.getName()));
+            assertTrue(names.get(Unused.class.getName()).add("some.pkg.Z"));
+
+            // listed once, and read through the connections the class loader reads resources through, so not opened again
+            Files.delete(jar);
+            assertEquals(Set.of("some.pkg.A", "some.pkg.C"), Index.listClassNames(List.of(Marker.class), cl).get(Marker.class.getName()));
+        }
+    }
+
+    @Test void reverse(@TempDir Path dir) throws Exception {
+        Path classes = dir.resolve("classes");
+        writeIndex(classes, "META-INF/annotations/", Marker.class, "some.pkg.A", "some.pkg.B$Nested");
+        writeIndex(classes, "META-INF/services/annotations/", Other.class, "some.pkg.A", "some.*");
+        Path jar = dir.resolve("lib.jar");
+        try (JarOutputStream jos = new JarOutputStream(Files.newOutputStream(jar))) {
+            jos.putNextEntry(new JarEntry("META-INF/"));
+            jos.putNextEntry(new JarEntry("META-INF/services/"));
+            jos.putNextEntry(new JarEntry("META-INF/services/annotations/"));
+            jos.putNextEntry(new JarEntry("META-INF/services/annotations/" + Unused.class.getName()));
+            jos.write("some.pkg.C\nsome.pkg.A\n".getBytes(StandardCharsets.UTF_8));
+        }
+        try (URLClassLoader cl = new URLClassLoader(new URL[] {classes.toUri().toURL(), jar.toUri().toURL()}, null)) {
+            assertEquals(List.of(Marker.class.getName(), Other.class.getName(), Unused.class.getName()), List.copyOf(Index.listAnnotationNames("some.pkg.A", cl)));
+            assertEquals(Set.of(Marker.class.getName()), Index.listAnnotationNames("some.pkg.B$Nested", cl));
+            assertEquals(Set.of(Unused.class.getName()), Index.listAnnotationNames("some.pkg.C", cl));
+            assertEquals(Set.of(Other.class.getName()), Index.listAnnotationNames("some.*", cl));
+            assertEquals(Set.of(), Index.listAnnotationNames("some.pkg.D", cl));
+            // read once until invalidated
+            writeIndex(classes, "META-INF/annotations/", Unused.class, "some.pkg.D");
+            assertEquals(Set.of(), Index.listAnnotationNames("some.pkg.D", cl));
+            Index.invalidate(cl);
+            assertEquals(Set.of(Unused.class.getName()), Index.listAnnotationNames("some.pkg.D", cl));
+        }
+        // including members, as recorded by the processor
+        assertEquals(Set.of(AnnotationProcessorImplTest.C.class.getName()),
+                Index.listAnnotationNames(AnnotationProcessorImplTest.Fine.class.getName(), IndexTest.class.getClassLoader()));
+    }
+
+    @Test void parallel() throws Exception {
+        ClassLoader cl = IndexTest.class.getClassLoader();
+        List<AnnotatedElement> sequential = new ArrayList<>();
+        Index.list(AnnotationProcessorImplTest.C.class, cl).forEach(sequential::add);
+        assertEquals(3, sequential.size());
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            assertEquals(sequential, Index.listParallel(AnnotationProcessorImplTest.C.class, cl, executor));
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(sequential, Index.listParallel(AnnotationProcessorImplTest.C.class, cl, Runnable::run));
+        assertEquals(List.of(), Index.listParallel(Unused.class, cl, Runnable::run));
+    }
+
+    @Test void concurrentReads(@TempDir Path dir) throws Exception {
+        List<URL> urls = new ArrayList<>();
+        Set<String> expected = new TreeSet<>();
+        for (int i = 0; i < 20; i++) {
+            Path jar = dir.resolve("lib" + i + ".jar");
+            writeJar(jar, "some.pkg.C" + i + "\nsome.pkg.A\n");
+            urls.add(jar.toUri().toURL());
+            expected.add("some.pkg.C" + i);
+        }
+        expected.add("some.pkg.A");
+        Set<String> threads = Collections.synchronizedSet(new TreeSet<>());
+        Index.setListener(new IndexListener() {
+            @Override
+            public void resourceRead(String annotationName, String root, long bytes) {
+                threads.add(Thread.currentThread().toString());
+            }
+        });
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try (URLClassLoader cl = new URLClassLoader(urls.toArray(new URL[0]), null)) {
+            assertEquals(expected, Index.listClassNames(Marker.class, cl, executor));
+            assertFalse(threads.contains(Thread.currentThread().toString()));
+            assertEquals(expected, Index.listClassNames(Marker.class, cl, null));
+            assertEquals(List.copyOf(Index.listClassNames(Marker.class, cl)), List.copyOf(Index.listClassNames(Marker.class, cl, executor)));
+            assertEquals(Set.of(), Index.listClassNames(Unused.class, cl, executor));
+
+            Files.delete(dir.resolve("lib7.jar"));
+            assertThrows(IOException.class, () -> Index.listClassNames(Marker.class, new URLClassLoader(urls.toArray(new URL[0]), null) {
+                @Override
+                public Enumeration<URL> getResources(String name) throws IOException {
+                    List<URL> found = Collections.list(super.getResources(name));
+                    found.add(new URL("jar:" + dir.resolve("lib7.jar").toUri() + "!/" + name));
+                    return Collections.enumeration(found);
+                }
+            }, executor));
+        } finally {
+            executor.shutdown();
+            Index.setListener(null);
+        }
+    }
+
+    @Test void subType() throws Exception {
+        ClassLoader cl = IndexTest.class.getClassLoader();
+        List<Method> methods = new ArrayList<>();
+        Index.list(AnnotationProcessorImplTest.C.class, cl, Method.class).forEach(methods::add);
+        assertEquals(3, methods.size());
+        assertFalse(Index.list(AnnotationProcessorImplTest.C.class, cl, Class.class).iterator().hasNext());
+        assertFalse(Index.list(AnnotationProcessorImplTest.OnPackage.class, cl, Field.class).iterator().hasNext());
+        Iterator<Executable> it = Index.list(AnnotationProcessorImplTest.OnConst.class, cl, Executable.class).iterator();
+        assertEquals(AnnotationProcessorImplTest.Stuff.class, it.next().getDeclaringClass());
+        assertFalse(it.hasNext());
+        assertThrows(NoSuchElementException.class, it::next);
+    }
+
+    @Test void aggregate(@TempDir Path dir) throws Exception {
+        Path classes = dir.resolve("classes");
+        writeIndex(classes, "META-INF/annotations/", Marker.class, "some.pkg.A");
+        writeIndex(classes, "META-INF/services/annotations/", Other.class, "some.pkg.B");
+        writeIndex(classes, Index.TRANSITIVE_PREFIX, Marker.class, "some.pkg.T");
+        Path jar = dir.resolve("lib.jar");
+        writeJar(jar, "some.pkg.C\nsome.pkg.A\n");
+        Path aggregate = dir.resolve("aggregate.jar");
+        new IndexAggregator().add(classes).add(jar).write(aggregate, true);
+
+        // changes to the inputs are not seen any more
+        writeJar(jar, "some.pkg.C\nsome.pkg.A\nsome.pkg.D\n");
+        try (URLClassLoader cl = new URLClassLoader(new URL[] {classes.toUri().toURL(), jar.toUri().toURL(), aggregate.toUri().toURL()}, null)) {
+            assertEquals(List.of("some.pkg.A", "some.pkg.C"), List.copyOf(Index.listClassNames(Marker.class, cl)));
+            assertEquals(List.of("some.pkg.A", "some.pkg.C", "some.pkg.T"), List.copyOf(Index.listTransitiveClassNames(Marker.class, cl)));
+            assertEquals(Set.of("some.pkg.B"), Index.listClassNames(List.of(Marker.class, Other.class), cl).get(Other.class.getName()));
+        }
+        try (URLClassLoader cl = new URLClassLoader(new URL[] {classes.toUri().toURL(), jar.toUri().toURL()}, null)) {
+            assertEquals(List.of("some.pkg.A", "some.pkg.C", "some.pkg.D"), List.copyOf(Index.listClassNames(Marker.class, cl)));
+        }
+
+        // not covered, despite its name
+        Path other = dir.resolve("other/classes");
+        writeIndex(other, "META-INF/annotations/", Marker.class, "some.pkg.E");
+        try (URLClassLoader cl = new URLClassLoader(new URL[] {classes.toUri().toURL(), other.toUri().toURL(), aggregate.toUri().toURL()}, null)) {
+            assertEquals(List.of("some.pkg.A", "some.pkg.C", "some.pkg.E"), List.copyOf(Index.listClassNames(Marker.class, cl)));
+            assertEquals(List.of("some.pkg.A", "some.pkg.C", "some.pkg.E"), List.copyOf(Index.listClassNames(List.of(Marker.class), cl).get(Marker.class.getName())));
+        }
+    }
+
+    @Test void aggregatedAlike(@TempDir Path dir) throws Exception {
+        ByteArrayOutputStream frontCoded = new ByteArrayOutputStream();
+        AnnotationProcessorImpl.writeIndex(new TreeSet<>(List.of("some.pkg.C", "some.pkg.D")), true, frontCoded);
+        for (String content : List.of("some.pkg.B\r\nsome.pkg.A\rsome.pkg.C\nsome.pkg.B\n", frontCoded.toString(StandardCharsets.UTF_8))) {
+            Path classes = dir.resolve("classes");
+            Path f = classes.resolve("META-INF/services/annotations/" + Marker.class.getName());
+            Files.createDirectories(f.getParent());
+            Files.write(f, content.getBytes(StandardCharsets.UTF_8));
+            Path jar = dir.resolve("lib.jar");
+            writeJar(jar, content);
+            Path fromClasses = dir.resolve("fromClasses");
+            new IndexAggregator().add(classes).write(fromClasses, false);
+            Path fromJar = dir.resolve("fromJar");
+            new IndexAggregator().add(jar).write(fromJar, false);
+            String entry = "META-INF/services/annotations/" + Marker.class.getName();
+            assertEquals(Files.readString(fromClasses.resolve(entry)), Files.readString(fromJar.resolve(entry)));
+        }
+    }
+
+    @Test void sortedNames() {
+        Listing listing = new Listing();
+        for (String name : List.of("some.pkg.D", "some.pkg.B", "some.pkg.C", "some.pkg.B", "some.pkg.A")) {
+            listing.add(name, null);
+        }
+        SortedSet<String> names = listing.getNames();
+        assertEquals(List.of("some.pkg.A", "some.pkg.B", "some.pkg.C", "some.pkg.D"), List.copyOf(names));
+        assertEquals(new TreeSet<>(names), names);
+        assertEquals("some.pkg.A", names.first());
+        assertEquals("some.pkg.D", names.last());
+        assertEquals(List.of("some.pkg.B", "some.pkg.C"), List.copyOf(names.subSet("some.pkg.B", "some.pkg.D")));
+        assertEquals(List.of("some.pkg.A", "some.pkg.B"), List.copyOf(names.headSet("some.pkg.BB")));
+        assertEquals(List.of("some.pkg.D"), List.copyOf(names.tailSet("some.pkg.C").tailSet("some.pkg.CC")));
+        assertFalse(names.headSet("some.pkg.C").contains("some.pkg.C"));
+        assertThrows(NoSuchElementException.class, () -> names.subSet("some.pkg.B", "some.pkg.B").first());
+    }
+
+    @Test void files(@TempDir Path dir) throws Exception {
+        Path f = dir.resolve("META-INF/annotations/" + Marker.class.getName());
+        Files.createDirectories(f.getParent());
+        Files.write(f, "some.pkg.B\r\nsome.pkg.\u00c4\r\nsome.pkg.B\r\nsome.pkg.A".getBytes(StandardCharsets.UTF_8));
+        List<String> many = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            many.add("some.pkg.C" + i);
+        }
+        many.add("some.pkg.A");
+        many.add("some.pkg.\u00c4");
+        writeIndex(dir, "META-INF/services/annotations/", Marker.class, many.toArray(new String[0]));
+        assertTrue(Files.size(dir.resolve("META-INF/services/annotations/" + Marker.class.getName())) >= IndexFile.MAP_THRESHOLD);
+
+        Set<String> expected = new TreeSet<>(many);
+        expected.add("some.pkg.B");
+        try (URLClassLoader cl = new URLClassLoader(new URL[] {dir.toUri().toURL()}, null)) {
+            assertEquals(expected, Index.listClassNames(Marker.class, cl));
+            assertEquals(expected, Index.listClassNames(List.of(Marker.class), cl).get(Marker.class.getName()));
+        }
+    }
+
+    @Test void frontCoded(@TempDir Path dir) throws Exception {
+        Set<String> names = new TreeSet<>();
+        for (int i = 0; i < 30000; i++) {
+            names.add("some.pkg.C" + i);
+        }
+        names.add("some.pkg.\u00c4");
+        names.add("some.pkg.\u00c4\u00d6");
+        names.add("some.pkg.\ud835\udc00");
+        names.add("some.pkg.\ud835\udc01");
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        AnnotationProcessorImpl.writeIndex(names, true, baos);
+        assertTrue(baos.size() < String.join("\n", names).length() / 2);
+
+        Path classes = dir.resolve("classes");
+        Path f = classes.resolve("META-INF/services/annotations/" + Marker.class.getName());
+        Files.createDirectories(f.getParent());
+        Files.write(f, baos.toByteArray());
+        assertTrue(Files.size(f) >= IndexFile.MAP_THRESHOLD);
+        try (URLClassLoader cl = new URLClassLoader(new URL[] {classes.toUri().toURL()}, null)) {
+            assertEquals(names, Index.listClassNames(Marker.class, cl));
+            assertEquals(names, Index.listClassNames(List.of(Marker.class), cl).get(Marker.class.getName()));
+        }
+
+        Path jar = dir.resolve("lib.jar");
+        writeJar(jar, baos.toString(StandardCharsets.UTF_8));
+        try (URLClassLoader cl = new URLClassLoader(new URL[] {jar.toUri().toURL()}, null)) {
+            assertEquals(names, Index.listClassNames(Marker.class, cl));
+        }
+    }
+
+    @Test void stream(@TempDir Path dir) throws Exception {
+        writeIndex(dir, "META-INF/annotations/", Marker.class, "some.pkg.B", "some.pkg.A");
+        writeIndex(dir, "META-INF/services/annotations/", Marker.class, "some.pkg.A", "some.pkg.C");
+        URL missing = dir.resolve("missing").toUri().toURL();
+        try (URLClassLoader cl = new URLClassLoader(new URL[] {dir.toUri().toURL()}, null) {
+            @Override
+            public Enumeration<URL> getResources(String name) throws IOException {
+                // an index file that fails to be read if ever opened
+                List<URL> urls = Collections.list(super.getResources(name));
+                if (name.endsWith(Marker.class.getName())) {
+                    urls.add(missing);
+                }
+                return Collections.enumeration(urls);
+            }
+        }) {
+            assertTrue(Index.streamClassNames(Marker.class, cl, false).anyMatch("some.pkg.A"::equals));
+            assertEquals(Optional.of("some.pkg.A"), Index.streamClassNames(Marker.class, cl, false).findFirst());
+            assertThrows(UncheckedIOException.class, () -> Index.streamClassNames(Marker.class, cl, false).count());
+            assertThrows(IOException.class, () -> Index.streamClassNames(Marker.class, cl, true));
+        }
+        try (URLClassLoader cl = new URLClassLoader(new URL[] {dir.toUri().toURL()}, null)) {
+            assertEquals(List.of("some.pkg.A", "some.pkg.B", "some.pkg.C"), Index.streamClassNames(Marker.class, cl, true).collect(Collectors.toList()));
+            assertEquals(Set.of("some.pkg.A", "some.pkg.B", "some.pkg.C"), Index.streamClassNames(Marker.class, cl, false).collect(Collectors.toSet()));
+            assertEquals(3, Index.streamClassNames(Marker.class, cl, false).count());
+        }
+
+        ClassLoader cl = IndexTest.class.getClassLoader();
+        List<Method> methods = new ArrayList<>();
+        Index.list(AnnotationProcessorImplTest.C.class, cl, Method.class).forEach(methods::add);
+        assertEquals(methods, Index.stream(AnnotationProcessorImplTest.C.class, cl, Method.class, true).collect(Collectors.toList()));
+        assertEquals(Set.copyOf(methods), Index.stream(AnnotationProcessorImplTest.C.class, cl, Method.class, false).collect(Collectors.toSet()));
+        assertEquals(0, Index.stream(AnnotationProcessorImplTest.C.class, cl, Class.class, false).count());
+    }
+
+    @Marker
+    @Test void listener(@TempDir Path dir) throws Exception {
+        writeIndex(dir, "META-INF/services/annotations/", Marker.class, IndexTest.class.getName(), "some.pkg.Missing");
+        List<String> events = Collections.synchronizedList(new ArrayList<>());
+        Index.setListener(new IndexListener() {
+            @Override
+            public void resourceRead(String annotationName, String root, long bytes) {
+                events.add("read " + annotationName + " " + bytes);
+            }
+
+            @Override
+            public void listed(String annotationName, int classNames, long nanos) {
+                events.add("listed " + annotationName + " " + classNames);
+            }
+
+            @Override
+            public void classLoaded(String className, long nanos) {
+                events.add("loaded " + className);
+            }
+
+            @Override
+            public void reflected(String className, int elements, long nanos) {
+                events.add("reflected " + className + " " + elements);
+            }
+
+            @Override
+            public void failed(String name, Throwable failure) {
+                events.add("failed " + name + " " + failure.getClass().getSimpleName());
+            }
+        });
+        try (URLClassLoader cl = new URLClassLoader(new URL[] {dir.toUri().toURL()}, IndexTest.class.getClassLoader())) {
+            Index.list(Marker.class, cl).forEach(e -> {});
+            long bytes = (IndexTest.class.getName() + "\nsome.pkg.Missing\n").length();
+            assertEquals(List.of(
+                    "read " + Marker.class.getName() + " " + bytes,
+                    "listed " + Marker.class.getName() + " 2",
+                    "loaded " + IndexTest.class.getName(),
+                    "reflected " + IndexTest.class.getName() + " 1",
+                    "failed some.pkg.Missing ClassNotFoundException"), events);
+        } finally {
+            Index.setListener(null);
+        }
+        events.clear();
+        Index.listClassNames(Marker.class, IndexTest.class.getClassLoader());
+        assertEquals(List.of(), events);
+    }
+
+    @Test void shared() throws Exception {
+        AtomicInteger listed = new AtomicInteger();
+        Index.setListener(new IndexListener() {
+            @Override
+            public void listed(String annotationName, int classNames, long nanos) {
+                listed.incrementAndGet();
+            }
+        });
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try (URLClassLoader cl = new URLClassLoader(new URL[0], IndexTest.class.getClassLoader())) {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<List<AnnotatedElement>>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(() -> {
+                    start.await();
+                    return Index.listShared(AnnotationProcessorImplTest.C.class, cl);
+                }));
+            }
+            start.countDown();
+            List<AnnotatedElement> first = results.get(0).get();
+            assertEquals(3, first.size());
+            for (Future<List<AnnotatedElement>> r : results) {
+                assertSame(first, r.get());
+            }
+            assertEquals(1, listed.get());
+            assertThrows(UnsupportedOperationException.class, first::clear);
+
+            Index.invalidate(cl);
+            assertEquals(first, Index.listShared(AnnotationProcessorImplTest.C.class, cl));
+            assertEquals(2, listed.get());
+        } finally {
+            executor.shutdown();
+            Index.setListener(null);
+        }
+    }
+
+    @Marker public static class Pinned {}
+
+    @Test void sharedUntilInvalidated(@TempDir Path dir) throws Exception {
+        writeIndex(dir, "META-INF/services/annotations/", Marker.class, Pinned.class.getName());
+        URLClassLoader cl = new URLClassLoader(new URL[] {dir.toUri().toURL()}, IndexTest.class.getClassLoader()) {
+            @Override
+            protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+                if (!name.equals(Pinned.class.getName())) {
+                    return super.loadClass(name, resolve);
+                }
+                synchronized (getClassLoadingLock(name)) {
+                    Class<?> c = findLoadedClass(name);
+                    if (c == null) {
+                        try (InputStream is = IndexTest.class.getResourceAsStream("IndexTest$Pinned.class")) {
+                            byte[] b = is.readAllBytes();
+                            c = defineClass(name, b, 0, b.length);
+                        } catch (IOException x) {
+                            throw new ClassNotFoundException(name, x);
+                        }
+                    }
+                    return c;
+                }
+            }
+        };
+        assertSame(cl, ((Class<?>) Index.listShared(Marker.class, cl).get(0)).getClassLoader());
+        WeakReference<ClassLoader> ref = new WeakReference<>(cl);
+        // as when unloading it
+        Index.invalidate(cl);
+        cl.close();
+        cl = null;
+        for (int i = 0; i < 50 && ref.get() != null; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertNull(ref.get());
+    }
+
+    @Test void missing(@TempDir Path dir) throws Exception {
+        writeIndex(dir, "META-INF/services/annotations/", Marker.class, IndexTest.class.getName(), "some.pkg.Missing");
+        List<String> failed = Collections.synchronizedList(new ArrayList<>());
+        List<String> lookedUp = Collections.synchronizedList(new ArrayList<>());
+        Index.setListener(new IndexListener() {
+            @Override
+            public void failed(String name, Throwable failure) {
+                failed.add(name);
+            }
+        });
+        Index.setCaching(true);
+        try (URLClassLoader cl = new URLClassLoader(new URL[] {dir.toUri().toURL()}, IndexTest.class.getClassLoader()) {
+            @Override
+            public Enumeration<URL> getResources(String name) throws IOException {
+                lookedUp.add(name);
+                return super.getResources(name);
+            }
+        }) {
+            for (int i = 0; i < 2; i++) {
+                List<AnnotatedElement> elements = new ArrayList<>();
+                Index.list(Marker.class, cl).forEach(elements::add);
+                assertEquals(1, elements.size());
+            }
+            assertEquals(List.of("some.pkg.Missing"), failed);
+            Index.invalidateMissing(cl);
+            Index.list(Marker.class, cl).forEach(e -> {});
+            assertEquals(List.of("some.pkg.Missing", "some.pkg.Missing"), failed);
+
+            assertEquals(Set.of(), Index.listClassNames(Unused.class, cl));
+            assertEquals(Set.of(), Index.listClassNames(List.of(Unused.class), cl).get(Unused.class.getName()));
+            assertEquals(0, Index.stream(Unused.class, cl, AnnotatedElement.class, false).count());
+            assertTrue(lookedUp.stream().noneMatch(n -> n.endsWith(Unused.class.getName())), lookedUp.toString());
+
+            writeIndex(dir, "META-INF/services/annotations/", Unused.class, "some.pkg.A");
+            Index.invalidate(cl);
+            assertEquals(Set.of("some.pkg.A"), Index.listClassNames(Unused.class, cl));
+        } finally {
+            Index.setCaching(false);
+            Index.setListener(null);
+        }
+    }
+
+    @Test void unindexed(@TempDir Path dir) throws Exception {
+        Path classes = dir.resolve("classes");
+        writeIndex(classes, "META-INF/annotations/", Marker.class, "some.pkg.A");
+        Path jar = dir.resolve("lib.jar");
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        try (JarOutputStream jos = new JarOutputStream(Files.newOutputStream(jar), manifest)) {
+            jos.putNextEntry(new JarEntry("META-INF/services/annotations/" + Marker.class.getName()));
+            jos.write("some.pkg.B\n".getBytes(StandardCharsets.UTF_8));
+        }
+        List<String> lookedUp = Collections.synchronizedList(new ArrayList<>());
+        Index.setCaching(true);
+        try (URLClassLoader cl = new URLClassLoader(new URL[] {classes.toUri().toURL(), jar.toUri().toURL()}, null) {
+            @Override
+            public Enumeration<URL> getResources(String name) throws IOException {
+                lookedUp.add(name);
+                return super.getResources(name);
+            }
+        }) {
+            // told apart by going through the class path, without looking up any resource
+            assertEquals(Set.of(), Index.listClassNames(Unused.class, cl));
+            assertEquals(List.of(), lookedUp);
+            assertEquals(Set.of("some.pkg.A", "some.pkg.B"), Index.listClassNames(Marker.class, cl));
+
+            // whose class path cannot be told, so through its index directories and the jar files with a manifest
+            ClassLoader opaque = new ClassLoader(null) {
+                @Override
+                protected Enumeration<URL> findResources(String name) throws IOException {
+                    lookedUp.add(name);
+                    return cl.findResources(name);
+                }
+            };
+            lookedUp.clear();
+            assertEquals(Set.of(), Index.listClassNames(Unused.class, opaque));
+            assertEquals(Set.of(), Index.listClassNames(Other.class, opaque));
+            assertTrue(lookedUp.stream().noneMatch(n -> n.endsWith(Unused.class.getName()) || n.endsWith(Other.class.getName())), lookedUp.toString());
+            assertEquals(Set.of("some.pkg.A", "some.pkg.B"), Index.listClassNames(Marker.class, opaque));
+        } finally {
+            Index.setCaching(false);
+        }
+    }
+
+    @Test void noDirectoryEntries(@TempDir Path dir) throws Exception {
+        Path jar = dir.resolve("lib.jar");
+        writeJar(jar, "some.pkg.A\n");
+        // only on the class path of another one
+        Path other = dir.resolve("other.jar");
+        try (JarOutputStream jos = new JarOutputStream(Files.newOutputStream(other))) {
+            jos.putNextEntry(new JarEntry("META-INF/services/annotations/" + Other.class.getName()));
+            jos.write("some.pkg.B\n".getBytes(StandardCharsets.UTF_8));
+        }
+        Path main = dir.resolve("main.jar");
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.CLASS_PATH, "other.jar");
+        new JarOutputStream(Files.newOutputStream(main), manifest).close();
+        Index.setCaching(true);
+        try (URLClassLoader cl = new URLClassLoader(new URL[] {jar.toUri().toURL(), main.toUri().toURL()}, null)) {
+            assertEquals(Set.of("some.pkg.A"), Index.listClassNames(Marker.class, cl));
+            assertEquals(Set.of("some.pkg.B"), Index.listClassNames(Other.class, cl));
+            assertEquals(Set.of(), Index.listClassNames(Unused.class, cl));
+        } finally {
+            Index.setCaching(false);
+        }
+        try (URLClassLoader cl = new URLClassLoader(new URL[] {jar.toUri().toURL(), main.toUri().toURL()}, null)) {
+            Map<String, Set<String>> names = Index.listClassNames(List.of(Marker.class, Other.class, Unused.class), cl);
+            assertEquals(Set.of("some.pkg.A"), names.get(Marker.class.getName()));
+            assertEquals(Set.of("some.pkg.B"), names.get(Other.class.getName()));
+            assertEquals(Set.of(), names.get(Unused.class.getName()));
+            // whose class path cannot be told, so found through the manifests, without looking up index files one by one
+            ClassLoader opaque = new ClassLoader(null) {
+                @Override
+                protected Enumeration<URL> findResources(String name) throws IOException {
+                    if (name.startsWith("META-INF/services/annotations/") && !name.endsWith("/")) {
+                        throw new IOException("looked up " + name);
+                    }
+                    return cl.findResources(name);
+                }
+            };
+            assertEquals(Set.of("some.pkg.B"), Index.listClassNames(List.of(Other.class), opaque).get(Other.class.getName()));
+
+            assertEquals(Set.of(Marker.class.getName()), Index.listAnnotationNames("some.pkg.A", cl));
+            assertEquals(Set.of(Other.class.getName()), Index.listAnnotationNames("some.pkg.B", cl));
+        }
+    }
+
+    @Test void snapshot(@TempDir Path dir) throws Exception {
+        Path classes = dir.resolve("classes");
+        writeIndex(classes, "META-INF/services/annotations/", Marker.class, "some.pkg.A");
+        Path jar = dir.resolve("lib.jar");
+        try (JarOutputStream jos = new JarOutputStream(Files.newOutputStream(jar))) {
+            jos.putNextEntry(new JarEntry("META-INF/"));
+            jos.putNextEntry(new JarEntry("META-INF/services/"));
+            jos.putNextEntry(new JarEntry("META-INF/services/annotations/"));
+            jos.putNextEntry(new JarEntry("META-INF/services/annotations/" + Other.class.getName()));
+            jos.write("some.pkg.C\n".getBytes(StandardCharsets.UTF_8));
+        }
+        URL[] urls = {classes.toUri().toURL(), jar.toUri().toURL()};
+        Path snapshot = dir.resolve("cache/snapshot.bin");
+        Index.setCaching(true);
+        try {
+            try (URLClassLoader cl = new URLClassLoader(urls, null)) {
+                assertFalse(IndexSnapshot.load(cl, snapshot));
+                Index.listClassNames(List.of(Marker.class, Other.class, Unused.class), cl);
+                assertTrue(IndexSnapshot.save(cl, snapshot));
+            }
+
+            // same size and time, so the snapshot is still taken to be up to date
+            Path f = classes.resolve("META-INF/services/annotations/" + Marker.class.getName());
+            FileTime time = Files.getLastModifiedTime(f);
+            writeIndex(classes, "META-INF/services/annotations/", Marker.class, "some.pkg.B");
+            Files.setLastModifiedTime(f, time);
+            AtomicInteger lookedUp = new AtomicInteger();
+            try (URLClassLoader cl = new URLClassLoader(urls, null) {
+                @Override
+                public Enumeration<URL> getResources(String name) throws IOException {
+                    lookedUp.incrementAndGet();
+                    return super.getResources(name);
+                }
+            }) {
+                assertTrue(IndexSnapshot.load(cl, snapshot));
+                // checked against the class path without looking up any resource
+                assertEquals(0, lookedUp.get());
+                assertEquals(Set.of("some.pkg.A"), Index.listClassNames(Marker.class, cl));
+                assertEquals(Set.of("some.pkg.C"), Index.listClassNames(Other.class, cl));
+                assertEquals(Set.of(), Index.listClassNames(Unused.class, cl));
+            }
+
+            Files.setLastModifiedTime(f, FileTime.fromMillis(time.toMillis() + 2000));
+            try (URLClassLoader cl = new URLClassLoader(urls, null)) {
+                assertFalse(IndexSnapshot.load(cl, snapshot));
+                assertEquals(Set.of("some.pkg.B"), Index.listClassNames(Marker.class, cl));
+                assertTrue(IndexSnapshot.save(cl, snapshot));
+            }
+
+            // a jar file lacking entries for its directories
+            Path extra = dir.resolve("extra.jar");
+            writeJar(extra, "some.pkg.D\n");
+            try (URLClassLoader cl = new URLClassLoader(new URL[] {urls[0], urls[1], extra.toUri().toURL()}, null)) {
+                assertFalse(IndexSnapshot.load(cl, snapshot));
+                assertEquals(Set.of("some.pkg.B", "some.pkg.D"), Index.listClassNames(Marker.class, cl));
+            }
+            try (URLClassLoader cl = new URLClassLoader(urls, null)) {
+                assertTrue(IndexSnapshot.load(cl, snapshot));
+            }
+        } finally {
+            Index.setCaching(false);
+        }
+        try (URLClassLoader cl = new URLClassLoader(urls, null)) {
+            assertFalse(IndexSnapshot.load(cl, snapshot));
+        }
+    }
+
+    private static void writeJar(Path jar, String markerIndex) throws IOException {
+        try (JarOutputStream jos = new JarOutputStream(Files.newOutputStream(jar))) {
+            jos.putNextEntry(new JarEntry("META-INF/services/annotations/" + Marker.class.getName()));
+            jos.write(markerIndex.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    static void writeIndex(Path root, String prefix, Class<?> annotation, String... lines) throws IOException {
+        Path f = root.resolve(prefix + annotation.getName());
+        Files.createDirectories(f.getParent());
+        Files.write(f, String.join("\n", lines).concat("\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+}
@@ -1,6 +1,7 @@
 package org.jvnet.hudson.annotation_indexer;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UncheckedIOException;
 import java.util.List;
 import javax.tools.JavaFileObject;
@@ -8,10 +9,7 @@ import javax.tools.StandardLocation;
 
 class Utils {
     public static String getGeneratedResource(List<JavaFileObject> generated, String filename) {
-        JavaFileObject fo = generated.stream()
-                .filter(it -> it.getName().equals("/" + StandardLocation.CLASS_OUTPUT + "/" + filename))
-                .findFirst()
-                .orElse(null);
+        JavaFileObject fo = find(generated, filename);
         if (fo == null) {
             return null;
         }
@@ -22,6 +20,25 @@ class Utils {
         }
     }
 
+    public static byte[] getGeneratedResourceBytes(List<JavaFileObject> generated, String filename) {
+        JavaFileObject fo = find(generated, filename);
+        if (fo == null) {
+            return null;
+        }
+        try (InputStream is = fo.openInputStream()) {
+            return is.readAllBytes();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static JavaFileObject find(List<JavaFileObject> generated, String filename) {
+        return generated.stream()
+                .filter(it -> it.getName().equals("/" + StandardLocation.CLASS_OUTPUT + "/" + filename))
+                .findFirst()
+                .orElse(null);
+    }
+
     private Utils() {}
 
 }